@@ -66,6 +66,11 @@ dependencies {
     // ❌ implementation("androidx.room:room-ktx:2.6.1") → Remove if no Kotlin Coroutines needed
     // → Replace with room-runtime only if using Java
 
+    // Paging: the alarm list is a PagingSource straight from Room
+    implementation("androidx.paging:paging-runtime:3.2.1")
+    implementation("androidx.room:room-paging:2.6.1")
+    implementation("androidx.lifecycle:lifecycle-viewmodel-ktx:2.6.2") // viewModelScope, for cachedIn
+
     // WorkManager
     implementation("androidx.work:work-runtime:2.9.0")
 
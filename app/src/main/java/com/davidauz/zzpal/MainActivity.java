@@ -2,6 +2,7 @@ package com.davidauz.zzpal;
 
 import static com.davidauz.zzpal.entity.Alarm.TYPE_ELAPSED;
 import static com.davidauz.zzpal.entity.Alarm.TYPE_FIXED;
+import static com.davidauz.zzpal.entity.Alarm.TYPE_RECURRING;
 
 import android.annotation.TargetApi;
 import android.app.ActivityManager;
@@ -27,9 +28,14 @@ import android.provider.Settings;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.NumberPicker;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.TimePicker;
@@ -43,17 +49,37 @@ import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.davidauz.zzpal.database.AlarmRepository;
 import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmFireDay;
+import com.davidauz.zzpal.entity.AlarmRow;
 import com.davidauz.zzpal.entity.AlarmScheduler;
+import com.davidauz.zzpal.entity.RecurrenceRule;
+import com.davidauz.zzpal.entity.TriggerCalculator;
 import com.davidauz.zzpal.service.AlarmService;
 import com.davidauz.zzpal.service.AppLogger;
+import com.davidauz.zzpal.service.FireHistory;
+import com.davidauz.zzpal.service.FireStats;
+import com.davidauz.zzpal.service.LogIndex;
+import com.davidauz.zzpal.service.LogRecord;
+import com.davidauz.zzpal.service.LogWriter;
 import com.davidauz.zzpal.ui.AlarmAdapter;
+import com.davidauz.zzpal.ui.LogListController;
 import com.davidauz.zzpal.views.AlarmViewModel;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /*
@@ -101,6 +127,12 @@ public class MainActivity extends ComponentActivity {
     private TextView audioSelectionText;
     private ActivityResultLauncher<String[]> multiplePermissionLauncher;
     private ActivityResultLauncher<Intent> ringtonePickerLauncher;
+    private ActivityResultLauncher<String> exportLauncher
+    ,   exportLogLauncher
+    ;
+    private ActivityResultLauncher<String[]> importLauncher;
+    private LogListController logListController;
+    private AlarmRepository.ChangeListener alarmChanges;
 
 
     @Override
@@ -115,6 +147,7 @@ public class MainActivity extends ComponentActivity {
         RecyclerView alarmList = findViewById(R.id.alarm_list);
         Button addButtonFixed = findViewById(R.id.add_button_fixed)
         ,   addButtonElapsed = findViewById(R.id.add_button_elapsed)
+        ,   addButtonRecurring = findViewById(R.id.add_button_recurring)
         ,   startAllButton = findViewById(R.id.add_button_startall)
         ,   stopAllButton = findViewById(R.id.add_button_stopall)
         ,   showLogsButton = findViewById(R.id.show_logs)
@@ -122,9 +155,16 @@ public class MainActivity extends ComponentActivity {
         ,   backButton = logsLayout.findViewById(R.id.button_back)
         ,   btnDumpDb=logsLayout.findViewById(R.id.btn_dumpdb)
         ,   btnFixes=logsLayout.findViewById(R.id.btnFixes)
+        ,   filterButton=logsLayout.findViewById(R.id.button_filter)
+        ,   btnStats=logsLayout.findViewById(R.id.btn_stats)
+        ,   btnExport=logsLayout.findViewById(R.id.btn_export)
+        ,   btnImport=logsLayout.findViewById(R.id.btn_import)
+        ,   btnHistory=logsLayout.findViewById(R.id.btn_history)
+        ,   btnExportLog=logsLayout.findViewById(R.id.btn_export_log)
         ;
 
         alarmList.setLayoutManager(new LinearLayoutManager(this));
+        logListController = new LogListController(logsLayout.findViewById(R.id.log_list));
 
         AlarmAdapter adapter = new AlarmAdapter
         (   (alarm, enabled) -> toggleAlarm(alarm, enabled)
@@ -149,11 +189,14 @@ public class MainActivity extends ComponentActivity {
 
         requestMultiplePermissions();
 
-        viewModel.getAllAlarms().observe(this, alarms -> {
-            adapter.submitList(alarms); // Update RecyclerView
+        viewModel.getAlarmPages().observe(this, pages -> {
+            adapter.submitData(getLifecycle(), pages); // Update RecyclerView
         });
+        alarmChanges = adapter::applyChanges;
+        viewModel.addChangeListener(alarmChanges);
 
-        addButtonFixed.setOnClickListener(v -> showDialogForNewFixedAlarm());
+        addButtonFixed.setOnClickListener(v -> showDialogForNewFixedAlarm(false));
+        addButtonRecurring.setOnClickListener(v -> showDialogForNewFixedAlarm(true));
         addButtonElapsed.setOnClickListener(v -> showDialogForNewElapsedAlarm());
         startAllButton.setOnClickListener(v -> startAllActiveAlarms());
         stopAllButton.setOnClickListener(v -> stopAllActiveAlarms());
@@ -162,6 +205,24 @@ public class MainActivity extends ComponentActivity {
         backButton.setOnClickListener(v->showMainlayout());
         btnDumpDb.setOnClickListener(v-> dumpdb());
         btnFixes.setOnClickListener(v-> btnFixes());
+        btnStats.setOnClickListener(v-> showStats());
+        btnExport.setOnClickListener(v-> exportLauncher.launch("zzpal_alarms.bin"));
+        btnImport.setOnClickListener(v-> importLauncher.launch(new String[]{"*/*"}));
+        btnHistory.setOnClickListener(v-> showHistory());
+        btnExportLog.setOnClickListener(v-> exportLogLauncher.launch("zzpal_log.txt"));
+        FireHistory.scheduleRollup(getApplicationContext());
+        setupLogFilter(filterButton);
+        setupLogSettings();
+        CheckBox queueMode = logsLayout.findViewById(R.id.check_queue_mode);
+        queueMode.setChecked(alarmScheduler.isQueueMode());
+        queueMode.setOnCheckedChangeListener((v, checked) -> alarmScheduler.setQueueMode(checked));
+        CheckBox structuredLog = logsLayout.findViewById(R.id.check_structured_log);
+        structuredLog.setChecked(AppLogger.getInstance().isStructuredLogging());
+        structuredLog.setOnCheckedChangeListener((v, checked) -> {
+            AppLogger.getInstance().setStructuredLogging(checked);
+            logListController.detach(); // the history is in the other files now
+            logListController.attach();
+        });
 
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.S) {
             if (!isExactAlarmPermissionGranted()) {
@@ -190,6 +251,25 @@ public class MainActivity extends ComponentActivity {
                 }
         );
 
+        exportLauncher = registerForActivityResult(
+                new ActivityResultContracts.CreateDocument("application/octet-stream"),
+                uri -> {
+                    if (null != uri)
+                        viewModel.exportAlarms(uri, this::toastLater);
+                });
+        importLauncher = registerForActivityResult(
+                new ActivityResultContracts.OpenDocument(),
+                uri -> {
+                    if (null != uri)
+                        viewModel.importAlarms(uri, this::toastLater);
+                });
+        exportLogLauncher = registerForActivityResult(
+                new ActivityResultContracts.CreateDocument("text/plain"),
+                uri -> {
+                    if (null != uri)
+                        exportLog(uri);
+                });
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             if (!canScheduleExactAlarms()) {
                 AppLogger.getInstance().log("CANNOT SCHEDULE EXACT ALARMS");
@@ -287,8 +367,33 @@ public class MainActivity extends ComponentActivity {
         }
     }
 
+    private void toastLater(String text) {
+        runOnUiThread(() -> Toast.makeText(this, text, Toast.LENGTH_LONG).show());
+    }
+
+// the whole log as text whatever its format, on a thread of its own: it reads every segment
+    private void exportLog(Uri uri) {
+        Thread t = new Thread(() -> {
+            try (OutputStream out = getContentResolver().openOutputStream(uri, "wt")) {
+                if (null == out)
+                    throw new FileNotFoundException(uri.toString());
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                AppLogger.getInstance().exportLogs(w);
+                w.flush();
+                toastLater("Log exported");
+            } catch (IOException e) {
+                toastLater("Log export failed: " + e.getMessage());
+            }
+        }, "zzpal-log-export");
+        t.setDaemon(true);
+        t.start();
+    }
+
     private void dumpdb() {
-        List<Alarm> alarms = viewModel.getAllAlarms().getValue();
+        viewModel.withAllAlarms(this::dumpAlarms);
+    }
+
+    private void dumpAlarms(List<Alarm> alarms) {
         AppLogger.getInstance().log("Starting DB dump");
         StringBuilder sb = new StringBuilder();
         for (Alarm alr : alarms) {
@@ -304,6 +409,53 @@ public class MainActivity extends ComponentActivity {
         AppLogger.getInstance().log("DB dump ended");
     }
 
+    private void showStats() {
+        viewModel.withAllAlarms(alarms -> {
+            String wakeups = AlarmScheduler.describeWakeups(alarms);
+            viewModel.withUpcoming(5, upcoming -> {
+                StringBuilder next = new StringBuilder("Next:");
+                for (Alarm alarm : upcoming) {
+                    next.append("\n  #").append(alarm.id).append(' ');
+                    TriggerCalculator.system().appendLocal(alarm.nextTriggerMillis, next);
+                }
+                String delays = FireStats.get(this).describe();
+                runOnUiThread(() -> {
+                    AppLogger logger = AppLogger.getInstance();
+                    myShowDialog("Fire delays (p50 / p99 / max)", delays
+                    +   "\n" + wakeups
+                    +   "\n" + next
+                    +   "\nLog entries written: " + logger.getFlushedEntries() + ", dropped: " + logger.getDroppedEntries()
+                    +   "\n" + viewModel.describeCache());
+                });
+            });
+        });
+    }
+
+    private static final int HISTORY_DAYS = 14
+    ,   HISTORY_ROWS = 200
+    ;
+
+// from the daily rollups, so it costs the same after years of fires
+    private void showHistory() {
+        viewModel.withFireHistory(HISTORY_DAYS, HISTORY_ROWS, days -> {
+            StringBuilder sb = new StringBuilder();
+            for (AlarmFireDay d : days) {
+                sb.append(LocalDate.ofEpochDay(d.day)).append("  #").append(d.alarmId)
+                .append(": ").append(d.fires).append(d.fires == 1 ? " fire" : " fires")
+                .append(", delay ").append(d.totalDelayMillis / d.fires).append('/').append(d.maxDelayMillis).append(" ms")
+                .append(", rang ").append(d.totalRingMillis / d.fires / 1000).append(" s");
+                if (0 < d.stopped)
+                    sb.append(", stopped ").append(d.stopped);
+                if (0 < d.failed)
+                    sb.append(", failed ").append(d.failed);
+                sb.append('\n');
+            }
+            if (0 == sb.length())
+                sb.append("No alarm fired in the last ").append(HISTORY_DAYS).append(" days");
+            runOnUiThread(() -> myShowDialog("Fires per day (delay mean/max)", sb.toString()));
+        });
+    }
+
     private void btnFixes() {
         String fileContent="";
         try {
@@ -323,18 +475,81 @@ public class MainActivity extends ComponentActivity {
         AppLogger.getInstance().log(fileContent);
     }
 
+    private void setupLogSettings() {
+        AppLogger logger = AppLogger.getInstance();
+        Spinner overflowSpinner = logsLayout.findViewById(R.id.log_overflow);
+        LogWriter.OverflowPolicy[] policies = LogWriter.OverflowPolicy.values();
+        String[] names = new String[policies.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = "queue full: " + policies[i].name().toLowerCase(Locale.ROOT).replace('_', ' ');
+        ArrayAdapter<String> overflowAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, names);
+        overflowAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        overflowSpinner.setAdapter(overflowAdapter);
+        overflowSpinner.setSelection(logger.getOverflowPolicy().ordinal(), false);
+        overflowSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                AppLogger.getInstance().setOverflowPolicy(policies[position]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        EditText tailLines = logsLayout.findViewById(R.id.log_tail_lines);
+        tailLines.setText(String.valueOf(logger.getMaxLogLines()));
+        tailLines.setOnEditorActionListener((v, actionId, event) -> {
+            try {
+                AppLogger.getInstance().setMaxLogLines(Integer.parseInt(tailLines.getText().toString().trim()));
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, "Not a number of lines", Toast.LENGTH_SHORT).show();
+            }
+            tailLines.setText(String.valueOf(AppLogger.getInstance().getMaxLogLines()));
+            return false; // the keyboard goes away as usual
+        });
+    }
+
+    private void setupLogFilter(Button filterButton) {
+        EditText alarmIdText = logsLayout.findViewById(R.id.filter_alarm_id);
+        Spinner eventSpinner = logsLayout.findViewById(R.id.filter_event);
+        String[] events = new String[LogRecord.eventCount() + 1];
+        events[0] = "any event";
+        for (int i = 1; i < events.length; i++)
+            events[i] = LogRecord.eventName(i - 1);
+        ArrayAdapter<String> eventAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, events);
+        eventAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        eventSpinner.setAdapter(eventAdapter);
+
+        filterButton.setOnClickListener(v -> {
+            long alarmId = LogRecord.NO_ALARM;
+            try {
+                alarmId = Long.parseLong(alarmIdText.getText().toString().trim());
+            } catch (NumberFormatException e) {
+                alarmIdText.setText("");
+            }
+            int code = eventSpinner.getSelectedItemPosition() - 1; // 0 is "any event" -> LogIndex.ANY_CODE
+            if (LogRecord.NO_ALARM == alarmId && LogIndex.ANY_CODE == code) {
+                logListController.detach();
+                logListController.attach();
+            } else {
+                logListController.showMatches(alarmId, code);
+            }
+        });
+    }
+
     private void showMainlayout() {
+        logListController.detach();
         logsLayout.setVisibility(View.GONE);
         mainLayout.setVisibility(View.VISIBLE);
     }
 
     private void clearLogs() {
-        AppLogger.getInstance().clearLogTextView(true);
+        AppLogger.getInstance().clearLogs(true);
     }
 
     private void showLogsLayout() {
-        TextView logs=findViewById(R.id.log_tw);
-        AppLogger.getInstance().setLogTextView(logs);
+        logListController.attach();
 
         mainLayout.setVisibility(View.GONE);
         logsLayout.setVisibility(View.VISIBLE);
@@ -368,32 +583,19 @@ public class MainActivity extends ComponentActivity {
 
     private void startAllActiveAlarms() {
         AppLogger.getInstance().log("MainActivity Starting all alarms");
-        List<Alarm> alarms = viewModel.getAllAlarms().getValue();
-        if (alarms != null) {
-            for (Alarm alarm : alarms) {
-                if (alarm.enabled) {
-                    alarmScheduler.scheduleAlarm(alarm);
-                }
-            }
-        }
+        viewModel.setAllEnabled(true, alarmScheduler::scheduleAll);
         Toast.makeText(this, "All alarms started!", Toast.LENGTH_SHORT).show();
     }
 
 
     private void stopAllActiveAlarms() {
-        List<Alarm> alarms = viewModel.getAllAlarms().getValue();
         AppLogger.getInstance().log("MainActivity Stopping all alarms");
-        if (alarms != null) {
-            for (Alarm alarm : alarms) {
-                if (alarm.enabled) {
-                    alarmScheduler.cancelAlarm(alarm.id);
-                }
-            }
-        }
+        viewModel.setAllEnabled(false, alarmScheduler::cancelAll);
         Toast.makeText(this, "All alarms stopped!", Toast.LENGTH_SHORT).show();
     }
 
-    private void showDialogForNewFixedAlarm() {
+// recurring alarms are fixed ones with a rule
+    private void showDialogForNewFixedAlarm(boolean recurring) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         LayoutInflater inflater = this.getLayoutInflater();
         View dialogView = inflater.inflate(R.layout.dialog_new_alarm_fixed, null);
@@ -407,8 +609,12 @@ public class MainActivity extends ComponentActivity {
         durationInput.setWrapSelectorWheel(false);
 
         Switch vibrateSwitch = dialogView.findViewById(R.id.switchVibrate);
+        EditText toleranceInput = dialogView.findViewById(R.id.editTolerance);
+        Switch fireMissedSwitch = dialogView.findViewById(R.id.switchFireMissed);
         audioSelectionText = dialogView.findViewById(R.id.textViewAudioSelection);
         Button selectAudioButton = dialogView.findViewById(R.id.buttonSelectAudio);
+        EditText recurrenceInput = dialogView.findViewById(R.id.editRecurrence);
+        dialogView.findViewById(R.id.rowRecurrence).setVisibility(recurring ? View.VISIBLE : View.GONE);
         timePicker.setIs24HourView(true);
         selectedRingtoneUri = Settings.System.DEFAULT_ALARM_ALERT_URI.toString();
         audioSelectionText.setText("Default Alarm");
@@ -422,11 +628,21 @@ public class MainActivity extends ComponentActivity {
             ringtonePickerLauncher.launch(intent);
         });
 
-        builder.setTitle("New Alarm (fixed)")
+        builder.setTitle(recurring ? "New Alarm (recurring)" : "New Alarm (fixed)")
             .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
             .setPositiveButton("Submit", (dialog, which) -> {
+                    String rule = null;
+                    if (recurring) {
+                        try {
+                            rule = RecurrenceRule.parse(recurrenceInput.getText().toString()
+                            ,   TriggerCalculator.system().localDay(System.currentTimeMillis())).toString();
+                        } catch (IllegalArgumentException e) {
+                            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                    }
 		            Alarm ala = new Alarm
-                    (   TYPE_FIXED
+                    (   recurring ? TYPE_RECURRING : TYPE_FIXED
                     ,   timePicker.getHour()
                     ,   timePicker.getMinute()
                     ,   durationInput.getValue()
@@ -434,6 +650,9 @@ public class MainActivity extends ComponentActivity {
                     ,   selectedRingtoneUri
                     ,   selectedRingtoneText
                     ,   false);
+                    ala.toleranceSeconds = readToleranceSeconds(toleranceInput);
+                    ala.missedPolicy = fireMissedSwitch.isChecked() ? Alarm.MISSED_FIRE : Alarm.MISSED_SKIP;
+                    ala.recurrence = rule;
                     saveNewAlarm(ala);
             });
 
@@ -467,6 +686,8 @@ public class MainActivity extends ComponentActivity {
 
 
         Switch vibrateSwitch = dialogView.findViewById(R.id.switchVibrate);
+        EditText toleranceInput = dialogView.findViewById(R.id.editTolerance);
+        Switch fireMissedSwitch = dialogView.findViewById(R.id.switchFireMissed);
         audioSelectionText = dialogView.findViewById(R.id.textViewAudioSelection_e);
         Button selectAudioButton = dialogView.findViewById(R.id.buttonSelectAudio);
 
@@ -493,6 +714,8 @@ public class MainActivity extends ComponentActivity {
             , selectedRingtoneUri
             , selectedRingtoneText
             , false);
+            ala.toleranceSeconds = readToleranceSeconds(toleranceInput);
+            ala.missedPolicy = fireMissedSwitch.isChecked() ? Alarm.MISSED_FIRE : Alarm.MISSED_SKIP;
             saveNewAlarm(ala);
             });
 
@@ -500,6 +723,15 @@ public class MainActivity extends ComponentActivity {
         dialog.show();
     }
 
+// the dialogs ask for minutes; empty means exact
+    private static int readToleranceSeconds(EditText input) {
+        try {
+            return Math.max(0, Integer.parseInt(input.getText().toString().trim())) * 60;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void saveNewAlarm(Alarm ala) {
         viewModel.addAlarm(ala);
         Toast.makeText(this, "Alarm saved!", Toast.LENGTH_SHORT).show();
@@ -527,19 +759,19 @@ public class MainActivity extends ComponentActivity {
     }
 
 
-    private void toggleAlarm(Alarm alarm, boolean enabled) {
-        alarm.setEnabled(enabled);
-        viewModel.updateAlarm(alarm);
+    private void toggleAlarm(AlarmRow row, boolean enabled) {
+        viewModel.setEnabled(row.id, enabled);
     }
 
-    private void deleteAlarm(Alarm alarm) {
-        viewModel.deleteAlarm(alarm.id);
+    private void deleteAlarm(AlarmRow row) {
+        viewModel.deleteAlarm(row.id);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        AppLogger.getInstance().clearLogTextView(false);
+        logListController.release();
+        viewModel.removeChangeListener(alarmChanges);
     }
 
 //following functions for debug purposes only
@@ -0,0 +1,128 @@
+package com.davidauz.zzpal.database;
+
+import android.util.LongSparseArray;
+
+import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmDao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Read-through cache of alarms by id, one per process.
+Every path that writes the alarms table tells the cache which rows it
+committed, and only those are dropped: Room's InvalidationTracker only knows
+tables, and the scheduler writes next triggers on every arm. A generation
+counter keeps a read that raced with a write from putting back the row it read
+before the write. New writes to the table must call invalidate() or clear()
+once committed.
+The alarms handed out are shared: read them, do not change them.
+*/
+public class AlarmCache {
+    static final int LIMIT = 256;
+    private static AlarmCache instance;
+
+    private final AlarmDao dao;
+    private final LongSparseArray<Alarm> alarms = new LongSparseArray<>(); // guarded by this
+    private long generation;
+    private int evictHand;
+    private long hits
+    ,   misses
+    ;
+
+    private AlarmCache(AlarmDatabase database) {
+        dao = database.alarmDao();
+    }
+
+    public static synchronized AlarmCache get(AlarmDatabase database) {
+        if (null == instance)
+            instance = new AlarmCache(database);
+        return instance;
+    }
+
+// null if there is no such alarm; not on the main thread when it misses
+    public Alarm getAlarm(long id) {
+        long gen;
+        synchronized (this) {
+            Alarm alarm = alarms.get(id);
+            if (null != alarm) {
+                hits++;
+                return alarm;
+            }
+            misses++;
+            gen = generation;
+        }
+        Alarm alarm = dao.getAlarm(id);
+        if (null != alarm)
+            store(gen, alarm);
+        return alarm;
+    }
+
+// the ones that exist, in no particular order; the misses are one query
+    public List<Alarm> getAlarms(long[] ids) {
+        List<Alarm> found = new ArrayList<>(ids.length);
+        long[] missing = new long[ids.length];
+        int n = 0;
+        long gen;
+        synchronized (this) {
+            for (long id : ids) {
+                Alarm alarm = alarms.get(id);
+                if (null == alarm)
+                    missing[n++] = id;
+                else
+                    found.add(alarm);
+            }
+            hits += ids.length - n;
+            misses += n;
+            gen = generation;
+        }
+        if (0 < n) {
+            long[] query = n == missing.length ? missing : Arrays.copyOf(missing, n);
+            for (Alarm alarm : dao.getAlarms(query)) {
+                store(gen, alarm);
+                found.add(alarm);
+            }
+        }
+        return found;
+    }
+
+    private synchronized void store(long gen, Alarm alarm) {
+        if (gen != generation)
+            return; // the table changed while it was being read
+        if (alarms.size() >= LIMIT && alarms.indexOfKey(alarm.id) < 0) {
+            evictHand = evictHand % alarms.size();
+            alarms.removeAt(evictHand++);
+        }
+        alarms.put(alarm.id, alarm);
+    }
+
+// after a write to these rows committed
+    public synchronized void invalidate(long... ids) {
+        generation++;
+        for (long id : ids)
+            alarms.remove(id);
+    }
+
+// after a write that touched rows by something else than their id
+    public synchronized void clear() {
+        generation++;
+        alarms.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return alarms.size();
+    }
+
+    public synchronized String describe() {
+        return "Alarm cache: " + alarms.size() + "/" + LIMIT + " rows, " + hits + " hits, " + misses + " misses";
+    }
+}
@@ -0,0 +1,45 @@
+package com.davidauz.zzpal.database;
+
+import com.davidauz.zzpal.entity.AlarmRow;
+
+/*
+One committed write to the alarms table, as AlarmRepository did it: which
+alarm and what it became. ALL_IDS stands for every alarm, for the writes
+that do not name them.
+*/
+public class AlarmChange {
+    public static final int INSERTED = 1
+    ,   UPDATED = 2   // row is the whole new row
+    ,   ENABLED = 3   // enabled is the new value
+    ,   REMOVED = 5
+    ;
+    public static final long ALL_IDS = -1;
+
+    public final int kind;
+    public final long id;
+    public final AlarmRow row;
+    public final boolean enabled;
+
+    AlarmChange(int kind, long id, AlarmRow row, boolean enabled) {
+        this.kind = kind;
+        this.id = id;
+        this.row = row;
+        this.enabled = enabled;
+    }
+
+    static AlarmChange inserted(AlarmRow row) {
+        return new AlarmChange(INSERTED, row.id, row, row.enabled);
+    }
+
+    static AlarmChange updated(AlarmRow row) {
+        return new AlarmChange(UPDATED, row.id, row, row.enabled);
+    }
+
+    static AlarmChange enabled(long id, boolean enabled) {
+        return new AlarmChange(ENABLED, id, null, enabled);
+    }
+
+    static AlarmChange removed(long id) {
+        return new AlarmChange(REMOVED, id, null, false);
+    }
+}
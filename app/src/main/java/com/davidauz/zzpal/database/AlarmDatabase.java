@@ -5,15 +5,76 @@ import android.content.Context;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import com.davidauz.zzpal.entity.AlarmDao;
 import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmFire;
+import com.davidauz.zzpal.entity.AlarmFireDao;
+import com.davidauz.zzpal.entity.AlarmFireDay;
+import com.davidauz.zzpal.entity.AlarmSnapshot;
 
-@Database(entities = {Alarm.class}, version = 3, exportSchema = false)
+@Database(entities = {Alarm.class, AlarmFire.class, AlarmFireDay.class}, version = 9, exportSchema = false)
 public abstract class AlarmDatabase extends RoomDatabase {
     public abstract AlarmDao alarmDao();
+    public abstract AlarmFireDao alarmFireDao();
 
     private static volatile AlarmDatabase INSTANCE;
 
+// new columns keep the alarms; anything older than version 3 is still dropped
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE alarms ADD COLUMN toleranceSeconds INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE alarms ADD COLUMN recurrence TEXT");
+        }
+    };
+
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE alarms ADD COLUMN missedPolicy INTEGER NOT NULL DEFAULT 0");
+        }
+    };
+
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE alarms ADD COLUMN nextTriggerMillis INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_alarms_nextTriggerMillis ON alarms (nextTriggerMillis)");
+        }
+    };
+
+// the next trigger index becomes (enabled DESC, nextTriggerMillis), which the paged list is ordered by
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS index_alarms_nextTriggerMillis");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_alarms_enabled_nextTriggerMillis ON alarms (enabled DESC, nextTriggerMillis ASC)");
+        }
+    };
+
+// fire history: raw fires and their daily rollups
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS alarm_fires (id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL"
+                + ", alarmId INTEGER NOT NULL, scheduledMillis INTEGER NOT NULL, receivedMillis INTEGER NOT NULL"
+                + ", audioStartMillis INTEGER NOT NULL, ringMillis INTEGER NOT NULL, endReason INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS index_alarm_fires_scheduledMillis ON alarm_fires (scheduledMillis)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS alarm_fire_days (day INTEGER NOT NULL, alarmId INTEGER NOT NULL"
+                + ", fires INTEGER NOT NULL, totalDelayMillis INTEGER NOT NULL, maxDelayMillis INTEGER NOT NULL"
+                + ", totalRingMillis INTEGER NOT NULL, timedOut INTEGER NOT NULL, stopped INTEGER NOT NULL"
+                + ", failed INTEGER NOT NULL, PRIMARY KEY(day, alarmId))");
+        }
+    };
+
     public static AlarmDatabase getDatabase(Context context) {
         if (INSTANCE == null) {
             synchronized (AlarmDatabase.class) {
@@ -22,8 +83,10 @@ public abstract class AlarmDatabase extends RoomDatabase {
                             context.getApplicationContext(),
                             AlarmDatabase.class,
                             "alarm_database"
-                    ).fallbackToDestructiveMigration()
+                    ).addMigrations(MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8, MIGRATION_8_9)
+                    .fallbackToDestructiveMigration()
                     .build();
+                    AlarmSnapshot.watch(context, INSTANCE);
                 }
             }
         }
@@ -1,44 +1,160 @@
 package com.davidauz.zzpal.database;
 
-import androidx.lifecycle.LiveData;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.paging.PagingSource;
 
 import com.davidauz.zzpal.entity.Alarm;
 import com.davidauz.zzpal.entity.AlarmDao;
+import com.davidauz.zzpal.entity.AlarmFireDao;
+import com.davidauz.zzpal.entity.AlarmFireDay;
+import com.davidauz.zzpal.entity.AlarmRow;
+import com.davidauz.zzpal.entity.AlarmSnapshot;
+import com.davidauz.zzpal.entity.TriggerCalculator;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 public class AlarmRepository {
+    private AlarmDatabase database;
     private AlarmDao alarmDao;
+    private AlarmFireDao fireDao;
     private Executor executor;
+    private WriteCoalescer writes;
+    private AlarmCache cache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+// told on the main thread about every write this repository committed, by id
+    public interface ChangeListener {
+        void onAlarmsChanged(List<AlarmChange> changes);
+    }
 
     public AlarmRepository(AlarmDatabase database, Executor executor) {
+        this.database = database;
         this.alarmDao = database.alarmDao();
+        this.fireDao = database.alarmFireDao();
         this.executor=executor;
+        writes = new WriteCoalescer(database, this::publish);
+        cache = AlarmCache.get(database);
+    }
+
+    public void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+        listeners.remove(l);
+    }
+
+    private void publish(List<AlarmChange> changes) {
+        if (changes.isEmpty() || listeners.isEmpty())
+            return;
+        mainHandler.post(() -> {
+            for (ChangeListener l : listeners)
+                l.onAlarmsChanged(changes);
+        });
     }
 
-    public LiveData<List<Alarm>> getAllAlarms() {
-        return alarmDao.getAllAlarms();
+// a new source each time, the Pager asks again after every invalidation
+    public PagingSource<Integer, AlarmRow> pageAlarms() {
+        return alarmDao.pageAlarms();
     }
 
     public void insert(Alarm alarm) {
         executor.execute(() -> {
-            alarmDao.insert(alarm);
+            alarm.id = alarmDao.insert(alarm);
+            cache.invalidate(alarm.id); // REPLACE may have overwritten it
+            publish(Collections.singletonList(AlarmChange.inserted(AlarmRow.of(alarm))));
         });
     }
 
+// edits and switches from the UI are coalesced, see WriteCoalescer
     public void update(Alarm alarm) {
-        alarmDao.update(alarm);
+        writes.update(alarm);
     }
 
     public void delete(Alarm alarm) {
         executor.execute(() -> {
             alarmDao.delete(alarm);
+            cache.invalidate(alarm.id);
+            publish(Collections.singletonList(AlarmChange.removed(alarm.id)));
+        });
+    }
+
+// by id, for list rows that do not carry the whole alarm
+    public void setEnabled(long id, boolean enabled) {
+        writes.setEnabled(id, enabled);
+    }
+
+    public void deleteById(long id) {
+        writes.delete(id);
+    }
+
+// pending coalesced writes now, on the calling thread
+    public void flushWrites() {
+        writes.flush();
+    }
+
+// one statement on the executor, after the switches still pending: the last
+// word is this one. then runs there once it is committed
+    public void setAllEnabled(boolean enabled, Runnable then) {
+        executor.execute(() -> {
+            writes.flush();
+            alarmDao.setAllEnabled(enabled);
+            cache.clear();
+            publish(Collections.singletonList(AlarmChange.enabled(AlarmChange.ALL_IDS, enabled)));
+            then.run();
         });
     }
 
-    public Alarm getAlarm(long id) {
-        return alarmDao.getAlarm(id);
+// straight from the database, not on the main thread
+    public List<Alarm> getAllAlarmsNow() {
+        return alarmDao.getAllAlarmsNow();
+    }
+
+// the next limit enabled alarms to fire, by the indexed next trigger; not on the main thread
+    public List<Alarm> getUpcoming(int limit) {
+        return alarmDao.getUpcoming(System.currentTimeMillis(), limit);
+    }
+
+// rollups from days days ago on, newest first; not on the main thread
+    public List<AlarmFireDay> getFireDays(int days, int limit) {
+        long today = TriggerCalculator.system().localDay(System.currentTimeMillis());
+        return fireDao.getDays(today - days, limit);
+    }
+
+// streamed, see AlarmTransfer; not on the main thread
+    public int exportTo(OutputStream out) throws IOException {
+        writes.flush();
+        return AlarmTransfer.export(alarmDao, out);
+    }
+
+// the snapshot is rewritten once at the end, not after every batch
+    public int importFrom(InputStream in) throws IOException {
+        AlarmSnapshot.hold();
+        try {
+            return AlarmTransfer.importFrom(alarmDao, in);
+        } finally {
+            cache.clear(); // REPLACE on ids that may be cached; the batches that made it are in
+            AlarmSnapshot.release(database);
+        }
+    }
+
+    public String describeCache() {
+        return cache.describe();
+    }
+
+// action gets the alarm, or null, on the executor; from AlarmCache: shared, do not modify
+    public void getAlarm(long id, Consumer<Alarm> action) {
+        executor.execute(() -> action.accept(cache.getAlarm(id)));
     }
 
 }
@@ -0,0 +1,129 @@
+package com.davidauz.zzpal.database;
+
+import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmDao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Alarm sets in and out of the app, as a stream: never more than BATCH alarms
+in memory, however many the file or the table holds.
+    MAGIC, VERSION                              ints
+    per alarm: 1, then the fields below         byte, fields
+    0                                           byte, end of the set
+Version 1 wrote hours as a byte, which cut elapsed alarms of 128 hours or
+more; version 2 writes an int. Both are read.
+Ids and next triggers are not carried: imported alarms get new ids and are
+armed by the reconcile that follows the import.
+*/
+public class AlarmTransfer {
+    private static final int MAGIC = 0x5a5a414c // "ZZAL"
+    ,   VERSION = 2
+    ;
+    static final int BATCH = 500;
+
+// returns the number of alarms written
+    public static int export(AlarmDao dao, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        int count = 0;
+        long after = 0;
+        List<Alarm> page;
+// keyset paging: each page starts after the last id of the previous one, no OFFSET to skip over
+        do {
+            page = dao.getPageAfter(after, BATCH);
+            for (Alarm alarm : page) {
+                out.writeByte(1);
+                write(out, alarm);
+                after = alarm.id;
+            }
+            count += page.size();
+        } while (BATCH == page.size());
+        out.writeByte(0);
+        out.flush();
+        return count;
+    }
+
+/*
+Reads the set and inserts it, BATCH alarms per transaction. A malformed file
+stops the import with an IOException; the full batches before it stay in.
+Returns the number of alarms inserted.
+*/
+    public static int importFrom(AlarmDao dao, InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (MAGIC != in.readInt())
+            throw new IOException("Not an alarm set");
+        int version = in.readInt();
+        if (1 != version && VERSION != version)
+            throw new IOException("Unsupported alarm set version " + version);
+        int count = 0;
+        List<Alarm> batch = new ArrayList<>(BATCH);
+        try {
+            while (0 != in.readByte()) {
+                batch.add(read(in, version));
+                if (BATCH == batch.size()) {
+                    dao.insertAll(batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Alarm set is truncated after " + (count + batch.size()) + " alarms", e);
+        }
+        if (!batch.isEmpty()) {
+            dao.insertAll(batch);
+            count += batch.size();
+        }
+        return count;
+    }
+
+    private static void write(DataOutputStream out, Alarm alarm) throws IOException {
+        out.writeByte(alarm.type);
+        out.writeInt(alarm.hours);
+        out.writeByte(alarm.minutes);
+        out.writeInt(alarm.durationSeconds);
+        out.writeInt(alarm.toleranceSeconds);
+        out.writeByte((alarm.vibrate ? 1 : 0) | (alarm.enabled ? 2 : 0));
+        out.writeByte(alarm.missedPolicy);
+        writeString(out, alarm.audioUri);
+        writeString(out, alarm.audioText);
+        writeString(out, alarm.recurrence);
+    }
+
+    private static Alarm read(DataInputStream in, int version) throws IOException {
+        int type = in.readByte()
+        ,   hours = 1 == version ? in.readByte() : in.readInt()
+        ,   minutes = in.readByte()
+        ,   duration = in.readInt()
+        ,   tolerance = in.readInt()
+        ,   flags = in.readByte()
+        ,   missed = in.readByte()
+        ;
+        Alarm alarm = new Alarm(type, hours, minutes, duration, 0 != (flags & 1)
+        ,   readString(in), readString(in), 0 != (flags & 2));
+        alarm.toleranceSeconds = tolerance;
+        alarm.missedPolicy = missed;
+        alarm.recurrence = readString(in);
+        return alarm;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(null != s);
+        if (null != s)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,185 @@
+package com.davidauz.zzpal.database;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+Every database job of the app goes through one of three lanes, each a single
+thread with a bounded queue, so the order within a lane is the order of
+submission:
+    FIRE          scheduler work and fire-path reads    spilled when full: never dropped
+    UI            interactive reads and writes          spilled when full: never dropped
+    MAINTENANCE   snapshots, rollups, cleanups          RejectedExecutionException when full
+Spilled jobs wait in an unbounded overflow behind the full queue and move into
+it as it drains; while anything is spilled, new jobs spill too, so the order
+holds. The job never runs on the caller: FIRE and UI jobs come from the main
+thread. The rejected count is the number of jobs that spilled.
+Separate threads at falling priorities: a long maintenance job or a burst of
+UI work waits its turn for SQLite's write lock but never sits in front of a
+fire in a queue.
+*/
+public class DbDispatcher {
+    private static final String TAG = "zzzPal.db";
+    public static final int LANE_FIRE = 0
+    ,   LANE_UI = 1
+    ,   LANE_MAINTENANCE = 2
+    ;
+    private static final String[] NAMES = {"fire", "ui", "maintenance"};
+    private static final int[] CAPACITY = {128, 256, 64}
+    ,   PRIORITY = {Process.THREAD_PRIORITY_FOREGROUND, Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_BACKGROUND}
+    ;
+    private static DbDispatcher instance;
+
+    private final Lane[] lanes = new Lane[NAMES.length];
+
+    private DbDispatcher() {
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane(i);
+    }
+
+    public static synchronized DbDispatcher get() {
+        if (null == instance)
+            instance = new DbDispatcher();
+        return instance;
+    }
+
+    public static Executor lane(int lane) {
+        return get().lanes[lane];
+    }
+
+    public Lane getLane(int lane) {
+        return lanes[lane];
+    }
+
+// one line per lane: depth now, and since start submitted / done / rejected, mean and max wait in the queue
+    public String describe() {
+        StringBuilder sb = new StringBuilder("DB lanes (queued, done, rejected, wait mean/max ms):");
+        for (Lane l : lanes)
+            sb.append("\n  ").append(l.describe());
+        return sb.toString();
+    }
+
+    public static class Lane implements Executor {
+        private final int lane;
+        private final ThreadPoolExecutor pool;
+// guarded by this
+        private final ArrayDeque<Runnable> spill = new ArrayDeque<>();
+        private long submitted
+        ,   completed
+        ,   rejected
+        ,   waitNanos
+        ,   maxWaitNanos
+        ,   runNanos
+        ;
+
+        Lane(int lane) {
+            this.lane = lane;
+            pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS
+            ,   new ArrayBlockingQueue<>(CAPACITY[lane])
+            ,   r -> {
+                    Thread t = new Thread(() -> {
+                        Process.setThreadPriority(PRIORITY[lane]);
+                        r.run();
+                    }, "zzpal-db-" + NAMES[lane]);
+                    t.setDaemon(true);
+                    return t;
+                }
+            ,   rejection(lane));
+        }
+
+        private RejectedExecutionHandler rejection(int lane) {
+            return (r, executor) -> {
+                synchronized (this) {
+                    rejected++;
+                }
+                if (LANE_MAINTENANCE == lane)
+                    throw new RejectedExecutionException(NAMES[lane] + " lane full");
+                synchronized (this) {
+                    if (spill.isEmpty())
+                        Log.w(TAG, NAMES[lane] + " lane full, spilling");
+                    spill.add(r);
+                    unspill(); // the lane may have drained since the queue refused it
+                }
+            };
+        }
+
+        @Override
+        public void execute(Runnable job) {
+            long queued = System.nanoTime();
+            Runnable task = () -> {
+                long start = System.nanoTime();
+                try {
+                    job.run();
+                } finally {
+                    long end = System.nanoTime();
+                    synchronized (this) {
+                        completed++;
+                        waitNanos += start - queued;
+                        maxWaitNanos = Math.max(maxWaitNanos, start - queued);
+                        runNanos += end - start;
+                        unspill();
+                    }
+                }
+            };
+            synchronized (this) {
+                submitted++;
+                if (!spill.isEmpty()) {
+                    rejected++;
+                    spill.add(task); // behind the ones already waiting
+                    return;
+                }
+            }
+            pool.execute(task);
+        }
+
+// with this held: as many spilled jobs as now fit, oldest first
+        private void unspill() {
+            while (!spill.isEmpty() && pool.getQueue().offer(spill.peek()))
+                spill.poll();
+        }
+
+        public int getQueueDepth() {
+            synchronized (this) {
+                return pool.getQueue().size() + spill.size();
+            }
+        }
+
+        public synchronized long getSubmitted() {
+            return submitted;
+        }
+
+        public synchronized long getCompleted() {
+            return completed;
+        }
+
+        public synchronized long getRejected() {
+            return rejected;
+        }
+
+        public synchronized double getMeanWaitMillis() {
+            return 0 == completed ? 0 : waitNanos / 1e6 / completed;
+        }
+
+        public synchronized double getMaxWaitMillis() {
+            return maxWaitNanos / 1e6;
+        }
+
+        public synchronized double getMeanRunMillis() {
+            return 0 == completed ? 0 : runNanos / 1e6 / completed;
+        }
+
+        synchronized String describe() {
+            return String.format(Locale.ROOT, "%-11s %d, %d, %d, %.1f/%.1f"
+            ,   NAMES[lane], getQueueDepth(), completed, rejected, getMeanWaitMillis(), getMaxWaitMillis());
+        }
+    }
+}
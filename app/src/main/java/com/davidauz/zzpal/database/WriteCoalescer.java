@@ -0,0 +1,138 @@
+package com.davidauz.zzpal.database;
+
+import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmDao;
+import com.davidauz.zzpal.entity.AlarmRow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+Writes from the UI, held for WINDOW_MS and then applied together in one
+transaction on the UI lane of DbDispatcher. Per alarm only the last write
+counts: flipping a switch five times is one UPDATE of the enabled column, a
+delete drops whatever was pending for that id. Nothing is read before
+writing; the switches are one UPDATE for those turned on and one for those
+turned off. What was committed goes to published, as AlarmChanges.
+*/
+class WriteCoalescer {
+    static final long WINDOW_MS = 200;
+    private static final byte DISABLE = 0
+    ,   ENABLE = 1
+    ;
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "zzpal-writes");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AlarmDatabase database;
+    private final AlarmDao dao;
+    private final AlarmCache cache;
+    private final Consumer<List<AlarmChange>> published;
+// pending, guarded by this
+    private HashMap<Long, Byte> enabled = new HashMap<>();
+    private HashMap<Long, Alarm> rows = new HashMap<>();
+    private ArrayList<Long> deleted = new ArrayList<>();
+    private boolean scheduled;
+
+    WriteCoalescer(AlarmDatabase database, Consumer<List<AlarmChange>> published) {
+        this.database = database;
+        dao = database.alarmDao();
+        cache = AlarmCache.get(database);
+        this.published = published;
+    }
+
+    synchronized void setEnabled(long id, boolean on) {
+        enabled.put(id, on ? ENABLE : DISABLE);
+        schedule();
+    }
+
+// the whole row; replaces earlier pending writes to the same alarm
+    synchronized void update(Alarm alarm) {
+        enabled.remove(alarm.id);
+        rows.put(alarm.id, alarm);
+        schedule();
+    }
+
+    synchronized void delete(long id) {
+        enabled.remove(id);
+        rows.remove(id);
+        deleted.add(id);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled)
+            return;
+        scheduled = true;
+        timer.schedule(() -> {
+            synchronized (this) {
+                scheduled = false; // from here on a new write starts a new window
+            }
+            DbDispatcher.lane(DbDispatcher.LANE_UI).execute(this::flush);
+        }, WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+// applies what is pending now, on the calling thread
+    void flush() {
+        HashMap<Long, Byte> flags;
+        HashMap<Long, Alarm> full;
+        ArrayList<Long> gone;
+        synchronized (this) {
+            if (enabled.isEmpty() && rows.isEmpty() && deleted.isEmpty())
+                return;
+            flags = enabled;
+            full = rows;
+            gone = deleted;
+            enabled = new HashMap<>();
+            rows = new HashMap<>();
+            deleted = new ArrayList<>();
+        }
+        database.runInTransaction(() -> {
+            if (!full.isEmpty())
+                dao.updateAll(new ArrayList<>(full.values()));
+            setEnabled(flags, ENABLE);
+            setEnabled(flags, DISABLE);
+            if (!gone.isEmpty()) {
+                long[] ids = new long[gone.size()];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = gone.get(i);
+                dao.deleteByIds(ids);
+            }
+        });
+        long[] written = new long[full.size() + flags.size() + gone.size()];
+        List<AlarmChange> changes = new ArrayList<>(written.length);
+        for (Alarm alarm : full.values()) {
+            written[changes.size()] = alarm.id;
+            changes.add(AlarmChange.updated(AlarmRow.of(alarm)));
+        }
+        for (Map.Entry<Long, Byte> e : flags.entrySet()) {
+            written[changes.size()] = e.getKey();
+            changes.add(AlarmChange.enabled(e.getKey(), ENABLE == e.getValue()));
+        }
+        for (long id : gone) {
+            written[changes.size()] = id;
+            changes.add(AlarmChange.removed(id));
+        }
+        cache.invalidate(written);
+        published.accept(changes);
+    }
+
+    private void setEnabled(HashMap<Long, Byte> flags, byte state) {
+        long[] ids = new long[flags.size()];
+        int n = 0;
+        for (Map.Entry<Long, Byte> e : flags.entrySet())
+            if (state == e.getValue())
+                ids[n++] = e.getKey();
+        if (0 < n)
+            dao.setEnabled(Arrays.copyOf(ids, n), ENABLE == state);
+    }
+}
@@ -1,14 +1,24 @@
 package com.davidauz.zzpal.entity;
 
+import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "alarms")
+import java.util.Objects;
+
+// the list pages on (enabled, nextTriggerMillis), the scheduler range-scans it for enabled = 1
+@Entity(tableName = "alarms", indices = {
+    @Index(value = {"enabled", "nextTriggerMillis"}, orders = {Index.Order.DESC, Index.Order.ASC})
+})
 public class Alarm {
     public static final int TYPE_FIXED=1
     ,   TYPE_ELAPSED=2
     ,   TYPE_RECURRING=3
     ;
+    public static final int MISSED_SKIP=0   // what to do when the device was off at trigger time
+    ,   MISSED_FIRE=1
+    ;
 
     @PrimaryKey(autoGenerate = true) public long id;
     public int type;
@@ -19,6 +29,10 @@ public class Alarm {
     public String audioUri;
     public String audioText;
     public boolean enabled;
+    @ColumnInfo(defaultValue = "0") public int toleranceSeconds; // may go off this much later, so that it can share a wakeup
+    public String recurrence; // TYPE_RECURRING: a RecurrenceRule, hours:minutes is the time of day
+    @ColumnInfo(defaultValue = "0") public int missedPolicy;
+    @ColumnInfo(defaultValue = "0") public long nextTriggerMillis; // kept by AlarmScheduler, 0 when not armed
 
     public Alarm(int type, int hours, int minutes, int durationSeconds, boolean vibrate, String audioUri, String audioText, boolean enabled) {
         this.type=type;
@@ -46,16 +60,24 @@ public class Alarm {
         && this.vibrate == newItem.vibrate
         && this.audioUri.equals(newItem.audioUri)
         && this.enabled == newItem.enabled
+        && this.toleranceSeconds == newItem.toleranceSeconds
+        && Objects.equals(this.recurrence, newItem.recurrence)
+        && this.missedPolicy == newItem.missedPolicy
+        && this.nextTriggerMillis == newItem.nextTriggerMillis
         && this.type == newItem.type;
     }
 
     public String getTypeDescr() {
-        switch(this.type) {
+        return typeDescr(this.type);
+    }
+
+    public static String typeDescr(int type) {
+        switch(type) {
             case TYPE_FIXED -> {return "Fixed";}
             case TYPE_ELAPSED -> {return "Interval";}
             case TYPE_RECURRING -> {return "Recurring";}
         }
-        return this.type+": unknown";
+        return type+": unknown";
     }
 
 }
@@ -1,23 +1,72 @@
 package com.davidauz.zzpal.entity;
 
 import androidx.lifecycle.LiveData;
+import androidx.paging.PagingSource;
 import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
 import java.util.List;
 
 @Dao
 public interface AlarmDao {
+// the list, one page at a time: enabled alarms first, in firing order; walks
+// index_alarms_enabled_nextTriggerMillis, so a page costs its own rows only
+    @Query("SELECT id, type, hours, minutes, durationSeconds, enabled, nextTriggerMillis FROM alarms"
+        + " ORDER BY enabled DESC, nextTriggerMillis, id")
+    PagingSource<Integer, AlarmRow> pageAlarms();
+
+// synchronous, for the scheduler's background thread
+    @Query("SELECT * FROM alarms WHERE enabled = 1")
+    List<Alarm> getEnabledAlarms();
+
     @Query("SELECT * FROM alarms ORDER BY hours, minutes")
-    LiveData<List<Alarm>> getAllAlarms();
+    List<Alarm> getAllAlarmsNow();
+
+// keyset paging by id, for streaming the whole table
+    @Query("SELECT * FROM alarms WHERE id > :after ORDER BY id LIMIT :limit")
+    List<Alarm> getPageAfter(long after, int limit);
+
+// the same for the enabled ones only, for the scheduler
+    @Query("SELECT * FROM alarms WHERE enabled = 1 AND id > :after ORDER BY id LIMIT :limit")
+    List<Alarm> getEnabledPageAfter(long after, int limit);
+
+    @Query("SELECT COUNT(*) FROM alarms WHERE enabled = 1")
+    int countEnabled();
 
     @Query("SELECT * FROM alarms WHERE id = :id")
     Alarm getAlarm(long id);
 
+    @Query("SELECT * FROM alarms WHERE id IN (:ids)")
+    List<Alarm> getAlarms(long[] ids);
+
+// next trigger lookups, a range scan on index_alarms_enabled_nextTriggerMillis
+    @Query("SELECT * FROM alarms WHERE enabled = 1 AND nextTriggerMillis >= :now ORDER BY nextTriggerMillis LIMIT :limit")
+    List<Alarm> getUpcoming(long now, int limit);
+
+    @Query("SELECT * FROM alarms WHERE enabled = 1 AND nextTriggerMillis >= :now ORDER BY nextTriggerMillis LIMIT :limit")
+    LiveData<List<Alarm>> observeUpcoming(long now, int limit);
+
+    @Query("SELECT * FROM alarms WHERE enabled = 1 AND nextTriggerMillis > 0 AND nextTriggerMillis < :before ORDER BY nextTriggerMillis")
+    List<Alarm> getDueBefore(long before);
+
+    @Query("UPDATE alarms SET nextTriggerMillis = :millis WHERE id = :id")
+    void setNextTrigger(long id, long millis);
+
+// ids[i] gets millis[i]; one transaction whatever the count
+    @Transaction
+    default void setNextTriggers(long[] ids, long[] millis) {
+        for (int i = 0; i < ids.length; i++)
+            setNextTrigger(ids[i], millis[i]);
+    }
+
+    @Query("DELETE FROM alarms WHERE id = :id")
+    void deleteById(long id);
+
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     long insert(Alarm alarm);
 
@@ -26,4 +75,21 @@ public interface AlarmDao {
 
     @Delete
     void delete(Alarm alarm);
+
+// bulk versions: one statement or one transaction each, so one invalidation of the table.
+// IN lists are bound as variables, SQLite on API 34 takes up to 32766 of them
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    long[] insertAll(List<Alarm> alarms);
+
+    @Update
+    int updateAll(List<Alarm> alarms);
+
+    @Query("DELETE FROM alarms WHERE id IN (:ids)")
+    int deleteByIds(long[] ids);
+
+    @Query("UPDATE alarms SET enabled = :enabled WHERE id IN (:ids) AND enabled != :enabled")
+    int setEnabled(long[] ids, boolean enabled);
+
+    @Query("UPDATE alarms SET enabled = :enabled WHERE enabled != :enabled")
+    int setAllEnabled(boolean enabled);
 }
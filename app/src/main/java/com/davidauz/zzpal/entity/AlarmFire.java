@@ -0,0 +1,26 @@
+package com.davidauz.zzpal.entity;
+
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/*
+One ring of one alarm, appended by FireHistory once the ring is over.
+Raw rows are kept for FireHistory.RAW_RETENTION_DAYS; the daily rollups in
+AlarmFireDay are kept for good.
+*/
+@Entity(tableName = "alarm_fires", indices = {@Index("scheduledMillis")})
+public class AlarmFire {
+    public static final int END_TIMEOUT = 1  // rang for its whole duration
+    ,   END_STOPPED = 2  // the service went away first
+    ,   END_FAILED = 3   // the sound could not be started
+    ;
+
+    @PrimaryKey(autoGenerate = true) public long id;
+    public long alarmId;
+    public long scheduledMillis;  // target time the alarm was armed for
+    public long receivedMillis;   // AlarmReceiver got it
+    public long audioStartMillis; // sound started, 0 if it never did
+    public long ringMillis;       // from service start to the end of the ring
+    public int endReason;
+}
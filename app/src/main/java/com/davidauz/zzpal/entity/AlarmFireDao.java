@@ -0,0 +1,50 @@
+package com.davidauz.zzpal.entity;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface AlarmFireDao {
+    @Insert
+    void insertAll(List<AlarmFire> fires);
+
+/*
+Adds the fires with afterId < id <= toId to what alarm_fire_days already
+holds for their days: each raw row is counted once, by id, however late it
+was inserted and whichever day it falls on. offsetMillis turns UTC into local
+time.
+A fire without a scheduled time (0) counts on the day it was received, with
+no delay.
+*/
+    @Query("INSERT OR REPLACE INTO alarm_fire_days"
+        + " (day, alarmId, fires, totalDelayMillis, maxDelayMillis, totalRingMillis, timedOut, stopped, failed)"
+        + " SELECT n.day, n.alarmId, n.fires + IFNULL(o.fires, 0)"
+        + ", n.totalDelayMillis + IFNULL(o.totalDelayMillis, 0), MAX(n.maxDelayMillis, IFNULL(o.maxDelayMillis, 0))"
+        + ", n.totalRingMillis + IFNULL(o.totalRingMillis, 0), n.timedOut + IFNULL(o.timedOut, 0)"
+        + ", n.stopped + IFNULL(o.stopped, 0), n.failed + IFNULL(o.failed, 0)"
+        + " FROM (SELECT (at + :offsetMillis) / 86400000 AS day, alarmId, COUNT(*) AS fires"
+        + ", SUM(receivedMillis - at) AS totalDelayMillis, MAX(receivedMillis - at) AS maxDelayMillis"
+        + ", SUM(ringMillis) AS totalRingMillis"
+        + ", SUM(endReason = 1) AS timedOut, SUM(endReason = 2) AS stopped, SUM(endReason = 3) AS failed"
+        + " FROM (SELECT *, CASE scheduledMillis WHEN 0 THEN receivedMillis ELSE scheduledMillis END AS at"
+        + " FROM alarm_fires WHERE id > :afterId AND id <= :toId)"
+        + " GROUP BY day, alarmId) n"
+        + " LEFT JOIN alarm_fire_days o ON o.day = n.day AND o.alarmId = n.alarmId")
+    void rollup(long afterId, long toId, long offsetMillis);
+
+    @Query("SELECT IFNULL(MAX(id), 0) FROM alarm_fires")
+    long getMaxId();
+
+// raw rows only, and only those already summed; dated as rollup dates them. The rollups stay
+    @Query("DELETE FROM alarm_fires"
+        + " WHERE CASE scheduledMillis WHEN 0 THEN receivedMillis ELSE scheduledMillis END < :beforeMillis"
+        + " AND id <= :rolledId")
+    int prune(long beforeMillis, long rolledId);
+
+// newest day first, a range on the primary key
+    @Query("SELECT * FROM alarm_fire_days WHERE day >= :fromDay ORDER BY day DESC, alarmId LIMIT :limit")
+    List<AlarmFireDay> getDays(long fromDay, int limit);
+}
@@ -0,0 +1,20 @@
+package com.davidauz.zzpal.entity;
+
+import androidx.room.Entity;
+
+/*
+Fires of one alarm on one local day, summed up from alarm_fires by
+AlarmFireDao.rollup. Delays are receive time minus scheduled time.
+*/
+@Entity(tableName = "alarm_fire_days", primaryKeys = {"day", "alarmId"})
+public class AlarmFireDay {
+    public long day; // local epoch day of the scheduled time
+    public long alarmId;
+    public int fires;
+    public long totalDelayMillis;
+    public long maxDelayMillis;
+    public long totalRingMillis;
+    public int timedOut;
+    public int stopped;
+    public int failed;
+}
@@ -0,0 +1,239 @@
+package com.davidauz.zzpal.entity;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+Pending fire times of every alarm, as a binary min-heap on the trigger time
+with a position map for O(log n) update and removal by alarm id.
+In queue mode AlarmScheduler registers only the head with AlarmManager.
+Each entry also carries the alarm's tolerance, for WakeupPlanner.
+Saved in heap order to alarm_queue.bin, together with the head that is
+currently registered, so loading takes no re-heapify and no binder call.
+*/
+public class AlarmQueue {
+    private static final String TAG="zzzPal.queue";
+    private static final int VERSION = 2;
+    public static final long NO_HEAD = -1;
+
+    public static class Entry {
+        public final long alarmId
+        ,   triggerMillis
+        ,   toleranceMillis
+        ;
+
+        public Entry(long alarmId, long triggerMillis, long toleranceMillis) {
+            this.alarmId = alarmId;
+            this.triggerMillis = triggerMillis;
+            this.toleranceMillis = toleranceMillis;
+        }
+    }
+
+    private final File file;
+    private long[] times = new long[16]
+    ,   ids = new long[16]
+    ,   tolerances = new long[16]
+    ;
+    private int size;
+    private final HashMap<Long, Integer> positions = new HashMap<>();
+    private long armedTime = NO_HEAD; // what AlarmManager holds
+    private boolean dirty;
+
+    public AlarmQueue(File file) {
+        this.file = file;
+        load();
+    }
+
+// adds the alarm or moves it to its new trigger time
+    public synchronized void put(long alarmId, long triggerMillis, long toleranceMillis) {
+        Integer i = positions.get(alarmId);
+        dirty = true;
+        if (null != i) {
+            tolerances[i] = toleranceMillis;
+            long old = times[i];
+            times[i] = triggerMillis;
+            if (triggerMillis < old)
+                siftUp(i);
+            else
+                siftDown(i);
+            return;
+        }
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+            tolerances = Arrays.copyOf(tolerances, size * 2);
+        }
+        times[size] = triggerMillis;
+        ids[size] = alarmId;
+        tolerances[size] = toleranceMillis;
+        positions.put(alarmId, size);
+        siftUp(size++);
+    }
+
+    public synchronized boolean remove(long alarmId) {
+        Integer i = positions.remove(alarmId);
+        if (null == i)
+            return false;
+        dirty = true;
+        size--;
+        if (i == size)
+            return true;
+// the last entry takes its place and goes whichever way it has to
+        times[i] = times[size];
+        ids[i] = ids[size];
+        tolerances[i] = tolerances[size];
+        positions.put(ids[i], i);
+        siftDown(i);
+        siftUp(i);
+        return true;
+    }
+
+    public synchronized Entry peek() {
+        return 0 == size ? null : new Entry(ids[0], times[0], tolerances[0]);
+    }
+
+// entries with a trigger at or before millis, in no particular order; only visits those
+    public synchronized List<Entry> triggeredBy(long millis) {
+        List<Entry> found = new ArrayList<>();
+        collect(0, millis, found);
+        return found;
+    }
+
+    private void collect(int i, long millis, List<Entry> found) {
+        if (i >= size || times[i] > millis)
+            return;
+        found.add(new Entry(ids[i], times[i], tolerances[i]));
+        collect(2 * i + 1, millis, found);
+        collect(2 * i + 2, millis, found);
+    }
+
+// removes and returns every entry due at or before now, earliest first
+    public synchronized List<Entry> popDue(long now) {
+        List<Entry> due = new ArrayList<>();
+        while (0 < size && times[0] <= now) {
+            due.add(new Entry(ids[0], times[0], tolerances[0]));
+            remove(ids[0]);
+        }
+        return due;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+        positions.clear();
+        dirty = true;
+    }
+
+    public synchronized long getArmedTime() {
+        return armedTime;
+    }
+
+    public synchronized void setArmedTime(long millis) {
+        if (armedTime != millis)
+            dirty = true;
+        armedTime = millis;
+    }
+
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeLong(armedTime);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(ids[i]);
+                out.writeLong(times[i]);
+                out.writeLong(tolerances[i]);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            return;
+        }
+        if (tmp.renameTo(file))
+            dirty = false;
+        else
+            Log.e(TAG, "Cannot replace " + file);
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (VERSION != in.readInt())
+                return;
+            armedTime = in.readLong();
+            int n = in.readInt();
+            times = new long[Math.max(16, n)];
+            ids = new long[times.length];
+            tolerances = new long[times.length];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readLong();
+                times[i] = in.readLong();
+                tolerances[i] = in.readLong();
+                positions.put(ids[i], i);
+            }
+            size = n;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+            size = 0;
+            positions.clear();
+        }
+    }
+
+    private void siftUp(int i) {
+        while (0 < i) {
+            int parent = (i - 1) >>> 1;
+            if (times[parent] <= times[i])
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1
+            ,   smallest = i
+            ;
+            if (l < size && times[l] < times[smallest])
+                smallest = l;
+            if (l + 1 < size && times[l + 1] < times[smallest])
+                smallest = l + 1;
+            if (smallest == i)
+                return;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long t = times[a];
+        times[a] = times[b];
+        times[b] = t;
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        long w = tolerances[a];
+        tolerances[a] = tolerances[b];
+        tolerances[b] = w;
+        positions.put(ids[a], a);
+        positions.put(ids[b], b);
+    }
+}
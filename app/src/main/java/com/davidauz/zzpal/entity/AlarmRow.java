@@ -0,0 +1,54 @@
+package com.davidauz.zzpal.entity;
+
+/*
+The columns of an alarm that a row of the list shows, and nothing else: no
+audio text, no rule, so a page of these stays small whatever the alarms hold.
+*/
+public class AlarmRow {
+    public long id;
+    public int type;
+    public int hours;
+    public int minutes;
+    public int durationSeconds;
+    public boolean enabled;
+    public long nextTriggerMillis;
+
+    public static AlarmRow of(Alarm alarm) {
+        AlarmRow row = new AlarmRow();
+        row.id = alarm.id;
+        row.type = alarm.type;
+        row.hours = alarm.hours;
+        row.minutes = alarm.minutes;
+        row.durationSeconds = alarm.durationSeconds;
+        row.enabled = alarm.enabled;
+        row.nextTriggerMillis = alarm.nextTriggerMillis;
+        return row;
+    }
+
+// the same row with another enabled value
+    public AlarmRow withEnabled(boolean on) {
+        AlarmRow row = new AlarmRow();
+        row.id = id;
+        row.type = type;
+        row.hours = hours;
+        row.minutes = minutes;
+        row.durationSeconds = durationSeconds;
+        row.enabled = on;
+        row.nextTriggerMillis = nextTriggerMillis;
+        return row;
+    }
+
+    public String getTypeDescr() {
+        return Alarm.typeDescr(type);
+    }
+
+    public boolean sameas(AlarmRow other) {
+        return this.id == other.id
+        && this.type == other.type
+        && this.hours == other.hours
+        && this.minutes == other.minutes
+        && this.durationSeconds == other.durationSeconds
+        && this.enabled == other.enabled
+        && this.nextTriggerMillis == other.nextTriggerMillis;
+    }
+}
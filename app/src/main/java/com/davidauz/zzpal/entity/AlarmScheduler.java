@@ -1,43 +1,496 @@
 package com.davidauz.zzpal.entity;
 
-import static com.davidauz.zzpal.entity.Alarm.TYPE_ELAPSED;
-import static com.davidauz.zzpal.entity.Alarm.TYPE_FIXED;
-import static com.davidauz.zzpal.entity.Alarm.TYPE_RECURRING;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Build;
 
 import com.davidauz.zzpal.MainActivity;
+import com.davidauz.zzpal.database.AlarmCache;
+import com.davidauz.zzpal.database.AlarmDatabase;
+import com.davidauz.zzpal.database.DbDispatcher;
 import com.davidauz.zzpal.service.AppLogger;
+import com.davidauz.zzpal.service.LogRecord;
 import com.davidauz.zzpal.views.AlarmReceiver;
-import java.text.SimpleDateFormat;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.Locale;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
+/*
+Arms and disarms alarms with AlarmManager.
+Everything armed is recorded in the ArmedRegistry, so that scheduleAll/reconcile
+only talk to AlarmManager about alarms that were added, removed or changed
+since they were armed, or whose trigger time has passed.
+In queue mode the fire times go in the AlarmQueue instead and only its head is
+registered, under QUEUE_REQUEST_CODE; AlarmReceiver calls fireDue when it goes off.
+Alarms with a tolerance are registered with a window rather than as alarm
+clocks; in queue mode the head is merged with every alarm whose window
+overlaps it (WakeupPlanner), so they all go off on one wakeup.
+*/
 public class AlarmScheduler {
+    public static final String ACTION_QUEUE = "com.davidauz.zzpal.QUEUE_HEAD";
+    private static final String REGISTRY_FILE = "armed_alarms.bin"
+    ,   QUEUE_FILE = "alarm_queue.bin"
+    ,   PREFS = "zzpal_scheduler"
+    ,   PREF_QUEUE_MODE = "queue_mode"
+    ;
+    private static final int QUEUE_REQUEST_CODE = 0 // alarm ids start at 1
+    ,   QUEUE_MODE_THRESHOLD = 400  // the system refuses more than 500 alarms per app
+    ,   PAGE = 500                  // enabled alarms per query when all of them are walked
+    ;
+    private static ArmedRegistry registry;
+    private static AlarmQueue queue;
+    private static final HashMap<Long, OccurrenceIterator> iterators = new HashMap<>();
+// database reads and batch scheduling, in order, on the fire lane
+    private static final Executor worker = DbDispatcher.lane(DbDispatcher.LANE_FIRE);
 
     private Context context;
+    private AlarmManager alarmManager;
+    private volatile boolean queueMode;
+    private boolean batching;   // reconcile in progress: the queue head is armed once at the end
+    private final HashMap<Long, Long> pendingTriggers = new HashMap<>(); // for Alarm.nextTriggerMillis
 
     public AlarmScheduler(Context context) {
         this.context = context.getApplicationContext();
+        alarmManager = (AlarmManager) this.context.getSystemService(Context.ALARM_SERVICE);
+        queueMode = getPrefs().getBoolean(PREF_QUEUE_MODE, false);
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    private ArmedRegistry getRegistry() {
+        synchronized (AlarmScheduler.class) {
+            if (null == registry)
+                registry = new ArmedRegistry(new File(context.getFilesDir(), REGISTRY_FILE));
+            return registry;
+        }
+    }
+
+    private AlarmQueue getQueue() {
+        synchronized (AlarmScheduler.class) {
+            if (null == queue)
+                queue = new AlarmQueue(new File(context.getFilesDir(), QUEUE_FILE));
+            return queue;
+        }
+    }
+
+    public boolean isQueueMode() {
+        return queueMode;
+    }
+
+// disarms everything the old way and arms the same alarms the new way; one-shots that went off stay done
+    public void setQueueMode(boolean on) {
+        worker.execute(() -> {
+            if (on == queueMode)
+                return;
+            Set<Long> armed = new HashSet<>();
+            for (ArmedRegistry.Entry e : getRegistry().all())
+                armed.add(e.alarmId);
+            List<Alarm> enabled = AlarmDatabase.getDatabase(context).alarmDao().getEnabledAlarms();
+            enabled.removeIf(alarm -> !armed.contains(alarm.id));
+            reconcile(new ArrayList<>());
+            queueMode = on;
+            getPrefs().edit().putBoolean(PREF_QUEUE_MODE, on).apply();
+            reconcile(enabled);
+        });
+    }
+
+// the fields that end up in the intent or decide the trigger time
+    static int configHash(Alarm alarm) {
+        return Objects.hash(alarm.type, alarm.hours, alarm.minutes, alarm.durationSeconds, alarm.vibrate, alarm.audioUri
+        ,   alarm.toleranceSeconds, alarm.recurrence, alarm.missedPolicy);
+    }
+
+/*
+Arms every enabled alarm in the database, disarms the rest; runs in the
+background. Past QUEUE_MODE_THRESHOLD enabled alarms it goes to queue mode
+first. The alarms are read PAGE at a time, never all at once.
+*/
+    public void scheduleAll() {
+        worker.execute(() -> {
+            AlarmDao dao = AlarmDatabase.getDatabase(context).alarmDao();
+            if (!queueMode && QUEUE_MODE_THRESHOLD < dao.countEnabled()) {
+                AppLogger.getInstance().log("Too many alarms for one registration each, switching to queue mode");
+                reconcile(new ArrayList<>()); // disarmed the old way
+                queueMode = true;
+                getPrefs().edit().putBoolean(PREF_QUEUE_MODE, true).apply();
+            }
+            reconcile(enabledAlarms(dao));
+        });
+    }
+
+// the enabled alarms by id, one query per PAGE of them
+    private static Iterable<Alarm> enabledAlarms(AlarmDao dao) {
+        return () -> new Iterator<Alarm>() {
+            private List<Alarm> page = dao.getEnabledPageAfter(0, PAGE);
+            private int at;
+
+            @Override
+            public boolean hasNext() {
+                if (at == page.size() && PAGE == page.size()) {
+                    page = dao.getEnabledPageAfter(page.get(at - 1).id, PAGE);
+                    at = 0;
+                }
+                return at < page.size();
+            }
+
+            @Override
+            public Alarm next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return page.get(at++);
+            }
+        };
+    }
+
+// disarms everything that was armed, plus the enabled alarms in case the registry was lost
+    public void cancelAll() {
+        worker.execute(() -> {
+            ArmedRegistry reg = getRegistry();
+            Set<Long> ids = new HashSet<>();
+            for (ArmedRegistry.Entry e : reg.all())
+                ids.add(e.alarmId);
+            for (Alarm alarm : AlarmDatabase.getDatabase(context).alarmDao().getEnabledAlarms())
+                ids.add(alarm.id);
+            batching = true;
+            try {
+                for (long id : ids)
+                    cancelAlarm(id);
+            } finally {
+                batching = false;
+            }
+            armQueueHead();
+            reg.save();
+            flushTriggers();
+        });
+    }
+
+/*
+Makes AlarmManager hold exactly the enabled alarms among alarms.
+Alarms already armed with the same configuration and a trigger still in the
+future are left alone. Not on the main thread: it writes the registry.
+Returns the number of alarms armed or disarmed.
+*/
+    public int reconcile(Iterable<Alarm> alarms) {
+        ArmedRegistry reg = getRegistry();
+        long now = System.currentTimeMillis();
+        Set<Long> wanted = new HashSet<>();
+        int changed = 0;
+        batching = true;
+        try {
+            for (Alarm alarm : alarms) {
+                if (!alarm.enabled)
+                    continue;
+                wanted.add(alarm.id);
+                ArmedRegistry.Entry armed = reg.get(alarm.id);
+                if (null != armed && armed.configHash == configHash(alarm) && armed.triggerMillis > now)
+                    continue;
+                scheduleAlarm(alarm);
+                changed++;
+            }
+            for (ArmedRegistry.Entry e : reg.all()) {
+                if (wanted.contains(e.alarmId))
+                    continue;
+                cancelAlarm(e.alarmId);
+                changed++;
+            }
+        } finally {
+            batching = false;
+        }
+        armQueueHead();
+        reg.save();
+        flushTriggers();
+        AppLogger.getInstance().log("Reconciled " + wanted.size() + " alarms, " + changed + " changed");
+        return changed;
+    }
+
+/*
+After a reboot or an app update AlarmManager holds nothing: re-arms what the
+registry says was armed, reading the enabled alarms a page at a time and, in
+queue mode, with one registration. An alarm leaves the registry when it goes
+off (rearm), so an entry whose trigger went by was still armed at shutdown: it
+is fired now or skipped according to its missedPolicy, then a recurring alarm
+is armed for its next trigger and any other is done. The rest keep the trigger they had.
+done is called on the scheduler thread.
+*/
+    public void restore(Runnable done) {
+        worker.execute(() -> {
+            try {
+                Iterable<Alarm> enabled = enabledAlarms(AlarmDatabase.getDatabase(context).alarmDao());
+                ArmedRegistry reg = getRegistry();
+                if (!queueMode && QUEUE_MODE_THRESHOLD < reg.all().size()) {
+                    AppLogger.getInstance().log("Too many alarms for one registration each, switching to queue mode");
+                    queueMode = true;
+                    getPrefs().edit().putBoolean(PREF_QUEUE_MODE, true).apply();
+                }
+                getQueue().setArmedTime(AlarmQueue.NO_HEAD);
+                TriggerCalculator calc = TriggerCalculator.system();
+                long now = System.currentTimeMillis();
+                Set<Long> kept = new HashSet<>();
+                int restored = 0
+                ,   missed = 0
+                ;
+                batching = true;
+                try {
+                    for (Alarm alarm : enabled) {
+                        ArmedRegistry.Entry armed = reg.get(alarm.id);
+                        if (null == armed)
+                            continue; // enabled but never started
+                        kept.add(alarm.id);
+                        restored++;
+                        if (armed.configHash == configHash(alarm) && armed.triggerMillis > now) {
+                            armAt(alarm, armed.triggerMillis, calc);
+                            continue;
+                        }
+                        if (armed.triggerMillis <= now) {
+                            missed++;
+                            if (Alarm.MISSED_FIRE == alarm.missedPolicy) {
+                                Intent fire = new Intent(context, AlarmReceiver.class);
+                                putFireExtras(fire, alarm, armed.triggerMillis);
+                                AlarmReceiver.fire(context, fire, now);
+                            } else {
+                                AppLogger.getInstance().event(LogRecord.EV_CANCELLED, alarm.id, "Missed while off, skipped");
+                            }
+                            if (!hasRule(alarm)) {
+                                cancelAlarm(alarm.id); // one shot, and this was it
+                                continue;
+                            }
+                        }
+                        scheduleAlarm(alarm, now);
+                    }
+                    for (ArmedRegistry.Entry e : reg.all()) {
+                        if (!kept.contains(e.alarmId))
+                            cancelAlarm(e.alarmId);
+                    }
+                } finally {
+                    batching = false;
+                }
+                armQueueHead();
+                reg.save();
+                flushTriggers();
+                AppLogger.getInstance().log("Restored " + restored + " alarms, " + missed + " missed");
+            } finally {
+                done.run();
+            }
+        });
+    }
+
+/*
+Queue mode: the head went off. Starts the alarm service for every entry that is
+due, then registers the next head. done is called on the scheduler thread.
+*/
+    public void fireDue(long receivedMillis, Runnable done) {
+        worker.execute(() -> {
+            try {
+                AlarmQueue q = getQueue();
+                q.setArmedTime(AlarmQueue.NO_HEAD);
+                List<AlarmQueue.Entry> due = q.popDue(receivedMillis);
+                long[] ids = new long[due.size()];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = due.get(i).alarmId;
+                HashMap<Long, Alarm> alarms = new HashMap<>();
+                if (0 < ids.length) {
+                    for (Alarm alarm : AlarmCache.get(AlarmDatabase.getDatabase(context)).getAlarms(ids))
+                        alarms.put(alarm.id, alarm);
+                }
+                for (AlarmQueue.Entry e : due) {
+                    Alarm alarm = alarms.get(e.alarmId);
+                    if (null == alarm || !alarm.enabled)
+                        continue;
+                    Intent fire = new Intent(context, AlarmReceiver.class);
+                    putFireExtras(fire, alarm, e.triggerMillis);
+                    AlarmReceiver.fire(context, fire, receivedMillis);
+                }
+                armQueueHead();
+            } finally {
+                done.run();
+            }
+        });
+    }
+
+// wakeups the enabled alarms cost over the next day, one per alarm and once merged
+    public static String describeWakeups(List<Alarm> alarms) {
+        TriggerCalculator calc = TriggerCalculator.system();
+        long horizon = calc.now() + 24 * 60 * 60 * 1000L;
+        long[] next = new long[alarms.size()]
+        ,   triggers = new long[alarms.size()]
+        ,   tolerances = new long[alarms.size()]
+        ;
+        calc.nextAll(alarms, next);
+        for (int i = 0; i < next.length; i++) {
+            if (hasRule(alarms.get(i)))
+                next[i] = nextTrigger(alarms.get(i), calc, calc.now());
+        }
+        int n = 0;
+        for (int i = 0; i < next.length; i++) {
+            Alarm alarm = alarms.get(i);
+            if (!alarm.enabled || OccurrenceIterator.NONE == next[i] || next[i] > horizon)
+                continue;
+            triggers[n] = next[i];
+            tolerances[n++] = alarm.toleranceSeconds * 1000L;
+        }
+        return "Wakeups in the next 24h: " + n + " exact, "
+        +   WakeupPlanner.plan(triggers, tolerances, n).size() + " coalesced";
+    }
+
+// what AlarmReceiver and AlarmService read from a firing alarm
+    public static void putFireExtras(Intent callback, Alarm alarm, long millis) {
+        callback.putExtra("ALARM_ID", alarm.id);
+        callback.putExtra("DURATION", alarm.durationSeconds);
+        callback.putExtra("VIBRATE", alarm.vibrate);
+        callback.putExtra("AUDIO_URI", alarm.audioUri);
+        callback.putExtra("TYPE", alarm.type);
+        callback.putExtra("TARGET_MILLIS", millis); // for FireStats
+        callback.putExtra("HOURS", alarm.hours);
+        callback.putExtra("MINUTES", alarm.minutes);
+        callback.putExtra("TOLERANCE", alarm.toleranceSeconds);
+        callback.putExtra("RRULE", alarm.recurrence);
+    }
+
+// the alarm as far as scheduling goes, back from putFireExtras; audioText is not carried
+    public static Alarm alarmFromExtras(Intent intent) {
+        Alarm alarm = new Alarm(intent.getIntExtra("TYPE", 0), intent.getIntExtra("HOURS", 0), intent.getIntExtra("MINUTES", 0)
+        ,   intent.getIntExtra("DURATION", 60), intent.getBooleanExtra("VIBRATE", false), intent.getStringExtra("AUDIO_URI")
+        ,   null, true);
+        alarm.id = intent.getLongExtra("ALARM_ID", -1);
+        alarm.toleranceSeconds = intent.getIntExtra("TOLERANCE", 0);
+        alarm.recurrence = intent.getStringExtra("RRULE");
+        return alarm;
+    }
+
+    static boolean hasRule(Alarm alarm) {
+        return Alarm.TYPE_RECURRING == alarm.type && null != alarm.recurrence && !alarm.recurrence.isEmpty();
+    }
+
+/*
+Next trigger after afterMillis. Recurring alarms keep their OccurrenceIterator
+between calls, as long as the rule and the time of day stay the same.
+OccurrenceIterator.NONE when a rule has no occurrence left.
+*/
+    static long nextTrigger(Alarm alarm, TriggerCalculator calc, long afterMillis) {
+        if (!hasRule(alarm))
+            return calc.next(alarm.type, alarm.hours, alarm.minutes, afterMillis);
+        String key = alarm.recurrence + "@" + alarm.hours + ":" + alarm.minutes;
+        OccurrenceIterator it;
+        synchronized (iterators) {
+            it = iterators.get(alarm.id);
+            if (null == it || !key.equals(it.key) || calc != it.calc) {
+                try {
+                    it = new OccurrenceIterator(RecurrenceRule.parse(alarm.recurrence, calc.localDay(afterMillis))
+                    ,   alarm.hours, alarm.minutes, calc, key);
+                } catch (IllegalArgumentException e) {
+                    AppLogger.getInstance().event(LogRecord.EV_ERROR, alarm.id, "Bad recurrence: " + e.getMessage());
+                    return OccurrenceIterator.NONE;
+                }
+                iterators.put(alarm.id, it);
+            }
+        }
+        return it.next(afterMillis);
+    }
+
+/*
+The service calls this when an alarm fires. A recurring alarm is armed for the
+occurrence after the one that just went off; any other is done and leaves the
+registry, unless it was armed again for another time in the meantime.
+firedTargetMillis 0 is a fire without TARGET_MILLIS: any trigger gone by matches.
+*/
+    public void rearm(Alarm alarm, long firedTargetMillis) {
+        worker.execute(() -> {
+            long now = System.currentTimeMillis();
+            if (hasRule(alarm)) {
+                scheduleAlarm(alarm, Math.max(firedTargetMillis, now));
+            } else {
+                ArmedRegistry.Entry armed = getRegistry().get(alarm.id);
+                if (null == armed || (0 == firedTargetMillis ? armed.triggerMillis > now : armed.triggerMillis != firedTargetMillis))
+                    return;
+                getRegistry().remove(alarm.id);
+                noteTrigger(alarm.id, 0);
+            }
+            getRegistry().save();
+        });
     }
 
     public void scheduleAlarm(Alarm alarm) {
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        scheduleAlarm(alarm, System.currentTimeMillis());
+    }
+
+    private void scheduleAlarm(Alarm alarm, long afterMillis) {
         if (alarmManager == null) {
             AppLogger.getInstance().log("AlarmManager is null");
             return;
         }
+        TriggerCalculator calc = TriggerCalculator.system();
+        long millis=nextTrigger(alarm, calc, afterMillis);
+        if (OccurrenceIterator.NONE == millis) {
+            AppLogger.getInstance().event(LogRecord.EV_SCHEDULED, alarm.id, "No occurrence left, not scheduled");
+            cancelAlarm(alarm.id);
+            return;
+        }
+        armAt(alarm, millis, calc);
+    }
+
+    private void armAt(Alarm alarm, long millis, TriggerCalculator calc) {
+        StringBuilder msg = new StringBuilder(32).append("Scheduled for ");
+        calc.appendLocal(millis, msg);
+        AppLogger.getInstance().event(LogRecord.EV_SCHEDULED, alarm.id, msg.toString());
+        getRegistry().put(new ArmedRegistry.Entry(alarm.id, millis, configHash(alarm)));
+        noteTrigger(alarm.id, millis);
+        if (queueMode) {
+            getQueue().put(alarm.id, millis, alarm.toleranceSeconds * 1000L);
+            armQueueHead();
+            return;
+        }
+
 //intent for triggered alarm
         Intent callback = new Intent(context, AlarmReceiver.class);
-        callback.putExtra("ALARM_ID", alarm.id);
-        callback.putExtra("DURATION", alarm.durationSeconds);
-        callback.putExtra("VIBRATE", alarm.vibrate);
-        callback.putExtra("AUDIO_URI", alarm.audioUri);
+        putFireExtras(callback, alarm, millis);
+        armSystemAlarm((int) alarm.id, callback, millis, alarm.toleranceSeconds * 1000L, alarm.id);
+    }
+
+// the database copy of the trigger is written in one transaction per batch, or right after a single change
+    private void noteTrigger(long alarmId, long millis) {
+        synchronized (pendingTriggers) {
+            pendingTriggers.put(alarmId, millis);
+        }
+        if (!batching)
+            worker.execute(this::flushTriggers);
+    }
+
+    private void flushTriggers() {
+        long[] ids
+        ,   millis
+        ;
+        synchronized (pendingTriggers) {
+            if (pendingTriggers.isEmpty())
+                return;
+            ids = new long[pendingTriggers.size()];
+            millis = new long[ids.length];
+            int i = 0;
+            for (Map.Entry<Long, Long> e : pendingTriggers.entrySet()) {
+                ids[i] = e.getKey();
+                millis[i++] = e.getValue();
+            }
+            pendingTriggers.clear();
+        }
+        AlarmDatabase database = AlarmDatabase.getDatabase(context);
+        database.alarmDao().setNextTriggers(ids, millis);
+        AlarmCache.get(database).invalidate(ids); // just these: the rest of the cache still serves fireDue
+    }
 
+// windowMillis 0 is an exact alarm clock, otherwise the system may deliver it up to that much later
+    private void armSystemAlarm(int requestCode, Intent callback, long millis, long windowMillis, long showId) {
         int flags = PendingIntent.FLAG_UPDATE_CURRENT;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             flags |= PendingIntent.FLAG_IMMUTABLE;
@@ -45,56 +498,83 @@ public class AlarmScheduler {
 
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
             context,
-            (int) alarm.id, // Unique per alarm
+            requestCode, // Unique per alarm
             callback,
             flags
         );
 
 // Intent for when user taps the alarm in status bar
         Intent showIntent = new Intent(context, MainActivity.class);
-        showIntent.putExtra("ALARM_ID", alarm.id);
+        showIntent.putExtra("ALARM_ID", showId);
 
         PendingIntent showPendingIntent = PendingIntent.getActivity(context,
-                (int)alarm.id, showIntent, PendingIntent.FLAG_UPDATE_CURRENT |PendingIntent.FLAG_IMMUTABLE);
-
-        LocalDateTime nowdt=LocalDateTime.now()
-        , targetdt = LocalDateTime.now()
-        ;
-        switch(alarm.type){
-            case TYPE_FIXED-> {
-                targetdt = LocalDateTime.of(nowdt.getYear(), nowdt.getMonth(), nowdt.getDayOfMonth(), alarm.hours, alarm.minutes);
-                if(LocalDateTime.now().isAfter(targetdt))
-                    targetdt=targetdt.plusDays(1);// if time already past then set for tomorrow
-            }
-            case TYPE_ELAPSED -> {
-                targetdt = nowdt.plusHours(alarm.hours).plusMinutes(alarm.minutes);
-            }
-            case TYPE_RECURRING->{targetdt = nowdt.plusHours(alarm.hours).plusMinutes(alarm.minutes);}
-        }
+                requestCode, showIntent, PendingIntent.FLAG_UPDATE_CURRENT |PendingIntent.FLAG_IMMUTABLE);
 
-        long millis=targetdt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
-        AppLogger.getInstance().log("#"+alarm.getId()+": "+formatter.format(millis));
-        if (alarmManager != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+        if (0 < windowMillis) {
+// inexact: batched with other wakeups by the system, but deferred in Doze
+            alarmManager.setWindow(AlarmManager.RTC_WAKEUP, millis, windowMillis, pendingIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
 // https://developer.android.com/training/monitoring-device-state/doze-standby :
 // Alarms set with setAlarmClock() continue to fire normally. The system exits Doze shortly
 // before those alarms fire.
-                   AlarmManager.AlarmClockInfo alarmInfo = new AlarmManager.AlarmClockInfo(millis, showPendingIntent);
-                alarmManager.setAlarmClock(alarmInfo, pendingIntent);
-            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, millis, pendingIntent);
-            } else {
-                alarmManager.set(AlarmManager.RTC_WAKEUP, millis, pendingIntent);
+               AlarmManager.AlarmClockInfo alarmInfo = new AlarmManager.AlarmClockInfo(millis, showPendingIntent);
+            alarmManager.setAlarmClock(alarmInfo, pendingIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, millis, pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, millis, pendingIntent);
+        }
+    }
+
+// registers the queue head if it is not the one AlarmManager already holds
+    private void armQueueHead() {
+        if (batching || null == alarmManager)
+            return;
+        AlarmQueue q = getQueue();
+        AlarmQueue.Entry head = q.peek();
+        long target = AlarmQueue.NO_HEAD
+        ,   window = 0
+        ;
+        if (null != head) {
+// only alarms due before the head's window closes can share its wakeup
+            List<AlarmQueue.Entry> near = q.triggeredBy(head.triggerMillis + head.toleranceMillis);
+            long[] triggers = new long[near.size()]
+            ,   tolerances = new long[near.size()]
+            ;
+            for (int i = 0; i < triggers.length; i++) {
+                triggers[i] = near.get(i).triggerMillis;
+                tolerances[i] = near.get(i).toleranceMillis;
             }
+            WakeupPlanner.Wakeup first = WakeupPlanner.plan(triggers, tolerances, triggers.length).get(0);
+            target = first.startMillis;
+            window = first.windowMillis;
+        }
+        if (target != q.getArmedTime()) {
+            Intent callback = new Intent(context, AlarmReceiver.class).setAction(ACTION_QUEUE);
+            if (null == head)
+                cancelSystemAlarm(QUEUE_REQUEST_CODE, callback);
+            else
+                armSystemAlarm(QUEUE_REQUEST_CODE, callback, target, window, head.alarmId);
+            q.setArmedTime(target);
         }
+        q.save();
     }
 
     public void cancelAlarm(long alarmId) {
-        AppLogger.getInstance().log("Stopping alarm #"+alarmId);
+        AppLogger.getInstance().event(LogRecord.EV_CANCELLED, alarmId, "Stopping alarm");
+        getRegistry().remove(alarmId);
+        noteTrigger(alarmId, 0);
+        if (queueMode) {
+            if (getQueue().remove(alarmId))
+                armQueueHead();
+            return;
+        }
         Intent intent = new Intent(context, AlarmReceiver.class);
         intent.putExtra("ALARM_ID", alarmId);
+        cancelSystemAlarm((int) alarmId, intent);
+    }
 
+    private void cancelSystemAlarm(int requestCode, Intent intent) {
         int flags = PendingIntent.FLAG_UPDATE_CURRENT;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             flags |= PendingIntent.FLAG_IMMUTABLE;
@@ -102,12 +582,11 @@ public class AlarmScheduler {
 
         PendingIntent pendingIntent = PendingIntent.getBroadcast(
             context,
-            (int) alarmId,
+            requestCode,
             intent,
             flags
         );
 
-        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
         alarmManager.cancel(pendingIntent);
         pendingIntent.cancel();
     }
@@ -0,0 +1,281 @@
+package com.davidauz.zzpal.entity;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+
+import com.davidauz.zzpal.database.AlarmDatabase;
+import com.davidauz.zzpal.database.DbDispatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+The enabled alarms in alarm_snapshot.bin, for the fire path: AlarmReceiver and
+AlarmService look an alarm up here, memory-mapped, instead of opening Room.
+    header      MAGIC, VERSION, count, offset of the strings       4 ints
+    records     count * RECORD bytes, sorted by id                  binary searched
+    strings     short length + UTF-8 bytes, referenced by offset    -1 is null
+Rewritten whole, tmp+rename, after every change to the alarms table (watch),
+on the maintenance lane of DbDispatcher; between hold() and release() changes
+only leave it stale, and release() rewrites it once.
+A reader notices the new file by its modification time and maps it again.
+*/
+public class AlarmSnapshot {
+    private static final String TAG = "zzzPal.snapshot"
+    ,   FILE = "alarm_snapshot.bin"
+    ;
+    private static final int MAGIC = 0x5a5a534e // "ZZSN"
+    ,   VERSION = 1
+    ,   HEADER = 16
+    ,   RECORD = 48 // id, nextTrigger, type, hours, minutes, duration, tolerance, flags, audioUri, recurrence
+    ,   FLAG_VIBRATE = 1
+    ,   FLAG_FIRE_MISSED = 2
+    ;
+    private static AlarmSnapshot instance;
+// guarded by AlarmSnapshot.class
+    private static boolean writePending
+    ,   writeSkipped // a change came in while held
+    ;
+    private static int held;
+
+    private final File file;
+    private ByteBuffer buffer; // null when there is no usable snapshot
+    private long mappedModified
+    ,   mappedLength
+    ;
+    private int count;
+
+    private AlarmSnapshot(File file) {
+        this.file = file;
+    }
+
+    public static synchronized AlarmSnapshot get(Context context) {
+        if (null == instance)
+            instance = new AlarmSnapshot(new File(context.getApplicationContext().getFilesDir(), FILE));
+        return instance;
+    }
+
+// false when no snapshot was ever written, or it cannot be read: then find says nothing
+    public synchronized boolean isLoaded() {
+        return null != remap();
+    }
+
+// the enabled alarm with this id as of the last write, null if there is none
+    public synchronized Alarm find(long id) {
+        ByteBuffer b = remap();
+        if (null == b)
+            return null;
+        int lo = 0
+        ,   hi = count - 1
+        ;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1
+            ,   at = HEADER + mid * RECORD
+            ;
+            long key = b.getLong(at);
+            if (key < id)
+                lo = mid + 1;
+            else if (key > id)
+                hi = mid - 1;
+            else
+                return decode(b, at);
+        }
+        return null;
+    }
+
+// the enabled alarm due first after millis, null if there is none; a scan, the records are sorted by id
+    public synchronized Alarm nextAfter(long millis) {
+        ByteBuffer b = remap();
+        if (null == b)
+            return null;
+        int best = -1;
+        long bestTrigger = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int at = HEADER + i * RECORD;
+            long trigger = b.getLong(at + 8);
+            if (trigger > millis && trigger < bestTrigger) {
+                bestTrigger = trigger;
+                best = at;
+            }
+        }
+        return best < 0 ? null : decode(b, best);
+    }
+
+    private Alarm decode(ByteBuffer b, int at) {
+        int flags = b.getInt(at + 36);
+        Alarm alarm = new Alarm(b.getInt(at + 16), b.getInt(at + 20), b.getInt(at + 24), b.getInt(at + 28)
+        ,   0 != (flags & FLAG_VIBRATE), string(b, b.getInt(at + 40)), null, true);
+        alarm.id = b.getLong(at);
+        alarm.nextTriggerMillis = b.getLong(at + 8);
+        alarm.toleranceSeconds = b.getInt(at + 32);
+        alarm.missedPolicy = 0 != (flags & FLAG_FIRE_MISSED) ? Alarm.MISSED_FIRE : Alarm.MISSED_SKIP;
+        alarm.recurrence = string(b, b.getInt(at + 44));
+        return alarm;
+    }
+
+    private static String string(ByteBuffer b, int offset) {
+        if (offset < 0)
+            return null;
+        int len = b.getShort(offset) & 0xffff;
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = b.get(offset + 2 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+// maps the file again if it was replaced since the last look; a stat, no read
+    private ByteBuffer remap() {
+        long modified = file.lastModified()
+        ,   length = file.length()
+        ;
+        if (null != buffer && modified == mappedModified && length == mappedLength)
+            return buffer;
+        buffer = null;
+        mappedModified = modified;
+        mappedLength = length;
+        if (length < HEADER)
+            return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int n = b.getInt(8);
+            if (MAGIC != b.getInt(0) || VERSION != b.getInt(4) || n < 0
+            ||  (long) HEADER + (long) n * RECORD > b.getInt(12) || b.getInt(12) > length)
+                return null;
+            count = n;
+            buffer = b;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot map " + file, e);
+        }
+        return buffer;
+    }
+
+/*
+Keeps the snapshot in step with the database, from when it is opened: one
+write now, one after each change to the alarms table. Writes that pile up
+while one is running collapse into the next.
+*/
+    public static void watch(Context context, AlarmDatabase database) {
+        AlarmSnapshot snapshot = get(context);
+        database.getInvalidationTracker().addObserver(new InvalidationTracker.Observer("alarms") {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                snapshot.requestWrite(database);
+            }
+        });
+        snapshot.requestWrite(database);
+    }
+
+// for bulk writes to the alarms table, such as an import: one rewrite at release() instead of one per batch
+    public static void hold() {
+        synchronized (AlarmSnapshot.class) {
+            held++;
+        }
+    }
+
+    public static void release(AlarmDatabase database) {
+        AlarmSnapshot snapshot;
+        synchronized (AlarmSnapshot.class) {
+            if (0 < --held || !writeSkipped)
+                return;
+            writeSkipped = false;
+            snapshot = instance;
+        }
+        if (null != snapshot)
+            snapshot.requestWrite(database);
+    }
+
+    private void requestWrite(AlarmDatabase database) {
+        synchronized (AlarmSnapshot.class) {
+            if (0 < held) {
+                writeSkipped = true;
+                return;
+            }
+            if (writePending)
+                return;
+            writePending = true;
+        }
+        try {
+            DbDispatcher.lane(DbDispatcher.LANE_MAINTENANCE).execute(() -> {
+                synchronized (AlarmSnapshot.class) {
+                    writePending = false;
+                    if (0 < held) {
+                        writeSkipped = true; // queued before the hold
+                        return;
+                    }
+                }
+                write(database.alarmDao().getEnabledAlarms());
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (AlarmSnapshot.class) {
+                writePending = false; // the next change asks again
+            }
+            Log.w(TAG, "Snapshot write not queued: " + e.getMessage());
+        }
+    }
+
+    void write(List<Alarm> alarms) {
+        alarms.sort(Comparator.comparingLong(a -> a.id));
+        byte[][] strings = new byte[alarms.size() * 2][];
+        int stringBytes = 0;
+        for (int i = 0; i < alarms.size(); i++) {
+            strings[2 * i] = utf8(alarms.get(i).audioUri);
+            strings[2 * i + 1] = utf8(alarms.get(i).recurrence);
+            for (int j = 2 * i; j <= 2 * i + 1; j++)
+                if (null != strings[j])
+                    stringBytes += 2 + strings[j].length;
+        }
+        int stringsAt = HEADER + alarms.size() * RECORD;
+        ByteBuffer b = ByteBuffer.allocate(stringsAt + stringBytes);
+        b.putInt(MAGIC).putInt(VERSION).putInt(alarms.size()).putInt(stringsAt);
+        int next = stringsAt;
+        for (int i = 0; i < alarms.size(); i++) {
+            Alarm a = alarms.get(i);
+            int uriAt = null == strings[2 * i] ? -1 : next;
+            if (0 <= uriAt)
+                next += 2 + strings[2 * i].length;
+            int ruleAt = null == strings[2 * i + 1] ? -1 : next;
+            if (0 <= ruleAt)
+                next += 2 + strings[2 * i + 1].length;
+            b.putLong(a.id).putLong(a.nextTriggerMillis)
+            .putInt(a.type).putInt(a.hours).putInt(a.minutes).putInt(a.durationSeconds).putInt(a.toleranceSeconds)
+            .putInt((a.vibrate ? FLAG_VIBRATE : 0) | (Alarm.MISSED_FIRE == a.missedPolicy ? FLAG_FIRE_MISSED : 0))
+            .putInt(uriAt).putInt(ruleAt);
+        }
+        for (byte[] s : strings) {
+            if (null != s)
+                b.putShort((short) s.length).put(s);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(b.array());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            return;
+        }
+        if (!tmp.renameTo(file))
+            Log.e(TAG, "Cannot replace " + file);
+    }
+
+// null stays null; longer than a short can say is cut, it would not be a usable uri anyway
+    private static byte[] utf8(String s) {
+        if (null == s)
+            return null;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= 0xffff ? bytes : Arrays.copyOf(bytes, 0xffff);
+    }
+}
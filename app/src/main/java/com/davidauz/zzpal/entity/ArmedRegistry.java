@@ -0,0 +1,110 @@
+package com.davidauz.zzpal.entity;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+What AlarmScheduler has registered with AlarmManager: alarm id -> trigger time
+and a hash of the alarm fields that go in the intent.
+Kept in armed_alarms.bin so that it survives the process; AlarmManager
+cannot be asked what it holds.
+*/
+public class ArmedRegistry {
+    private static final String TAG="zzzPal.armed";
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public final long alarmId
+        ,   triggerMillis
+        ;
+        public final int configHash;
+
+        public Entry(long alarmId, long triggerMillis, int configHash) {
+            this.alarmId = alarmId;
+            this.triggerMillis = triggerMillis;
+            this.configHash = configHash;
+        }
+    }
+
+    private final File file;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    public ArmedRegistry(File file) {
+        this.file = file;
+        load();
+    }
+
+    public synchronized Entry get(long alarmId) {
+        return entries.get(alarmId);
+    }
+
+    public synchronized void put(Entry e) {
+        entries.put(e.alarmId, e);
+        dirty = true;
+    }
+
+    public synchronized void remove(long alarmId) {
+        if (null != entries.remove(alarmId))
+            dirty = true;
+    }
+
+    public synchronized List<Entry> all() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        dirty = true;
+    }
+
+// written only when something changed since the last save
+    public synchronized void save() {
+        if (!dirty)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry e : entries.values()) {
+                out.writeLong(e.alarmId);
+                out.writeLong(e.triggerMillis);
+                out.writeInt(e.configHash);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            return;
+        }
+        if (tmp.renameTo(file))
+            dirty = false;
+        else
+            Log.e(TAG, "Cannot replace " + file);
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (VERSION != in.readInt())
+                return;
+            for (int n = in.readInt(); n > 0; n--) {
+                Entry e = new Entry(in.readLong(), in.readLong(), in.readInt());
+                entries.put(e.alarmId, e);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+        }
+    }
+}
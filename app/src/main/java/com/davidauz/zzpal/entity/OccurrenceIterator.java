@@ -0,0 +1,60 @@
+package com.davidauz.zzpal.entity;
+
+/*
+Fire times of a recurring alarm, lazily: days are tested against the rule one
+after the other, never twice, and the next HORIZON occurrences are kept, so
+asking for the next one as time goes by costs O(1) amortized.
+*/
+public class OccurrenceIterator {
+    public static final long NONE = -1;
+    private static final int HORIZON = 8;
+
+    private final RecurrenceRule rule;
+    private final int hours
+    ,   minutes
+    ;
+    final TriggerCalculator calc;
+    final String key; // what the owner built it from
+    private final long[] upcoming = new long[HORIZON]; // ring, in time order
+    private int head
+    ,   count
+    ;
+    private long nextDay = Long.MIN_VALUE; // first day not tested yet
+    private final long scanLimit;          // days tested per refill before giving up
+
+    public OccurrenceIterator(RecurrenceRule rule, int hours, int minutes, TriggerCalculator calc, String key) {
+        this.rule = rule;
+        this.key = key;
+        this.hours = hours;
+        this.minutes = minutes;
+        this.calc = calc;
+        scanLimit = 4 * 366 + 7L * rule.interval * HORIZON;
+    }
+
+// first occurrence strictly after afterMillis, NONE when the rule has none left
+    public synchronized long next(long afterMillis) {
+        while (true) {
+            while (0 < count && upcoming[head] <= afterMillis) {
+                head = (head + 1) % HORIZON;
+                count--;
+            }
+            if (0 < count)
+                return upcoming[head];
+            if (!refill(afterMillis))
+                return NONE;
+        }
+    }
+
+    private boolean refill(long afterMillis) {
+        long day = Math.max(nextDay, calc.localDay(afterMillis));
+        for (long tested = 0; count < HORIZON && tested < scanLimit && !rule.isOver(day); tested++, day++) {
+            if (!rule.matches(day))
+                continue;
+            long t = calc.atLocal(day, hours, minutes, afterMillis);
+            if (t > afterMillis)
+                upcoming[(head + count++) % HORIZON] = t;
+        }
+        nextDay = day;
+        return 0 < count;
+    }
+}
@@ -0,0 +1,201 @@
+package com.davidauz.zzpal.entity;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+The subset of RFC 5545 RRULE that recurring alarms understand, as stored in
+Alarm.recurrence:
+    FREQ=DAILY|WEEKLY       required
+    INTERVAL=n              every n days / weeks, counted from DTSTART
+    BYDAY=MO,TU,...         WEEKLY only; default is the weekday of DTSTART
+    DTSTART=yyyyMMdd        first day that can match; defaults to the day the rule is parsed
+    UNTIL=yyyyMMdd          last day that can match, inclusive
+    EXDATE=yyyyMMdd,...     days that never match
+DTSTART and EXDATE are parameters of the rule here, not separate properties.
+Weekdays are those of the local calendar; days are counted as epoch days.
+*/
+public class RecurrenceRule {
+    public static final int FREQ_DAILY = 1
+    ,   FREQ_WEEKLY = 2
+    ;
+    private static final String[] DAY_NAMES = {"MO", "TU", "WE", "TH", "FR", "SA", "SU"};
+
+    public final int freq
+    ,   interval
+    ,   byDay  // bit 0 is Monday
+    ;
+    public final long startDay
+    ,   untilDay
+    ;
+    private final long[] excluded; // sorted
+
+    private RecurrenceRule(int freq, int interval, int byDay, long startDay, long untilDay, long[] excluded) {
+        this.freq = freq;
+        this.interval = interval;
+        this.byDay = byDay;
+        this.startDay = startDay;
+        this.untilDay = untilDay;
+        this.excluded = excluded;
+    }
+
+// today is the epoch day DTSTART defaults to; throws IllegalArgumentException on anything it does not understand
+    public static RecurrenceRule parse(String rule, long today) {
+        int freq = 0
+        ,   interval = 1
+        ,   byDay = 0
+        ;
+        long startDay = today
+        ,   untilDay = Long.MAX_VALUE
+        ;
+        long[] excluded = new long[0];
+        for (String part : rule.trim().toUpperCase(Locale.ROOT).split(";")) {
+            if (part.isEmpty())
+                continue;
+            int eq = part.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Bad rule part: " + part);
+            String key = part.substring(0, eq)
+            ,   value = part.substring(eq + 1)
+            ;
+            switch (key) {
+                case "FREQ" -> freq = switch (value) {
+                    case "DAILY" -> FREQ_DAILY;
+                    case "WEEKLY" -> FREQ_WEEKLY;
+                    default -> throw new IllegalArgumentException("Unsupported FREQ: " + value);
+                };
+                case "INTERVAL" -> {
+                    interval = parseInt(value);
+                    if (interval < 1)
+                        throw new IllegalArgumentException("Bad INTERVAL: " + value);
+                }
+                case "BYDAY" -> {
+                    for (String d : value.split(","))
+                        byDay |= 1 << dayIndex(d);
+                }
+                case "DTSTART" -> startDay = parseDay(value);
+                case "UNTIL" -> untilDay = parseDay(value);
+                case "EXDATE" -> {
+                    String[] days = value.split(",");
+                    excluded = new long[days.length];
+                    for (int i = 0; i < days.length; i++)
+                        excluded[i] = parseDay(days[i]);
+                    Arrays.sort(excluded);
+                }
+                default -> throw new IllegalArgumentException("Unsupported rule part: " + key);
+            }
+        }
+        if (0 == freq)
+            throw new IllegalArgumentException("FREQ is missing");
+        if (FREQ_DAILY == freq && 0 != byDay)
+            throw new IllegalArgumentException("BYDAY needs FREQ=WEEKLY");
+        if (FREQ_WEEKLY == freq && 0 == byDay)
+            byDay = 1 << dayOfWeek(startDay);
+        return new RecurrenceRule(freq, interval, byDay, startDay, untilDay, excluded);
+    }
+
+    public boolean matches(long day) {
+        if (day < startDay || day > untilDay || 0 <= Arrays.binarySearch(excluded, day))
+            return false;
+        if (FREQ_DAILY == freq)
+            return 0 == (day - startDay) % interval;
+        if (0 == (byDay & (1 << dayOfWeek(day))))
+            return false;
+        return 0 == (weekOf(day) - weekOf(startDay)) % interval;
+    }
+
+// no day after this one can match
+    public boolean isOver(long day) {
+        return day > untilDay;
+    }
+
+// canonical form, with DTSTART filled in; what gets stored in the alarm
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(FREQ_DAILY == freq ? "FREQ=DAILY" : "FREQ=WEEKLY");
+        if (1 != interval)
+            sb.append(";INTERVAL=").append(interval);
+        if (FREQ_WEEKLY == freq) {
+            sb.append(";BYDAY=");
+            String sep = "";
+            for (int d = 0; d < 7; d++) {
+                if (0 == (byDay & (1 << d)))
+                    continue;
+                sb.append(sep).append(DAY_NAMES[d]);
+                sep = ",";
+            }
+        }
+        sb.append(";DTSTART=");
+        appendDay(sb, startDay);
+        if (Long.MAX_VALUE != untilDay) {
+            sb.append(";UNTIL=");
+            appendDay(sb, untilDay);
+        }
+        for (int i = 0; i < excluded.length; i++) {
+            sb.append(0 == i ? ";EXDATE=" : ",");
+            appendDay(sb, excluded[i]);
+        }
+        return sb.toString();
+    }
+
+// 0 is Monday; 1970-01-01 was a Thursday
+    static int dayOfWeek(long day) {
+        return (int) Math.floorMod(day + 3, 7L);
+    }
+
+// weeks start on Monday
+    private static long weekOf(long day) {
+        return Math.floorDiv(day + 3, 7L);
+    }
+
+    private static int dayIndex(String name) {
+        for (int d = 0; d < 7; d++) {
+            if (DAY_NAMES[d].equals(name))
+                return d;
+        }
+        throw new IllegalArgumentException("Bad BYDAY: " + name);
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+// yyyyMMdd to epoch day
+    static long parseDay(String value) {
+        if (8 != value.length())
+            throw new IllegalArgumentException("Bad date: " + value);
+        int v = parseInt(value)
+        ,   y = v / 10000
+        ,   m = v / 100 % 100
+        ,   d = v % 100
+        ;
+        if (m < 1 || m > 12 || d < 1 || d > 31)
+            throw new IllegalArgumentException("Bad date: " + value);
+// days from civil, proleptic Gregorian
+        long yy = m <= 2 ? y - 1 : y
+        ,   era = Math.floorDiv(yy, 400)
+        ,   yoe = yy - era * 400
+        ,   doy = (153L * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1
+        ,   doe = yoe * 365 + yoe / 4 - yoe / 100 + doy
+        ;
+        return era * 146097 + doe - 719468;
+    }
+
+    private static void appendDay(StringBuilder sb, long day) {
+        long z = day + 719468
+        ,   era = Math.floorDiv(z, 146097)
+        ,   doe = z - era * 146097
+        ,   yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365
+        ,   doy = doe - (365 * yoe + yoe / 4 - yoe / 100)
+        ,   mp = (5 * doy + 2) / 153
+        ,   d = doy - (153 * mp + 2) / 5 + 1
+        ,   m = mp < 10 ? mp + 3 : mp - 9
+        ,   y = yoe + era * 400 + (m <= 2 ? 1 : 0)
+        ;
+        sb.append(String.format(Locale.ROOT, "%04d%02d%02d", y, m, d));
+    }
+}
@@ -0,0 +1,173 @@
+package com.davidauz.zzpal.entity;
+
+import static com.davidauz.zzpal.entity.Alarm.TYPE_ELAPSED;
+import static com.davidauz.zzpal.entity.Alarm.TYPE_FIXED;
+import static com.davidauz.zzpal.entity.Alarm.TYPE_RECURRING;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.List;
+
+/*
+Next trigger time of an alarm, in epoch millis, without LocalDateTime.
+Local wall time is epoch millis plus the zone offset; the offset is cached for
+the whole interval between two transitions of the zone rules, so most calls
+allocate nothing.
+FIXED is the next hours:minutes on the wall clock. A time that falls in a DST
+gap moves forward by the length of the gap, a time that happens twice in an
+overlap is the earlier of the two (unless that one is already past), the same
+as ZonedDateTime.
+ELAPSED is a duration from now, counted in real time; so is RECURRING without
+a rule, RECURRING with a rule goes through OccurrenceIterator.
+*/
+public class TriggerCalculator {
+    private static final long MINUTE_MS = 60 * 1000L
+    ,   HOUR_MS = 60 * MINUTE_MS
+    ,   DAY_MS = 24 * HOUR_MS
+    ;
+    private static TriggerCalculator system;
+
+    private final Clock clock;
+    private final ZoneRules rules;
+    private long cachedFrom = Long.MAX_VALUE   // [cachedFrom, cachedUntil) has cachedOffset
+    ,   cachedUntil = Long.MIN_VALUE
+    ,   cachedOffset
+    ;
+
+    public TriggerCalculator(Clock clock) {
+        this.clock = clock;
+        rules = clock.getZone().getRules();
+    }
+
+// shared instance on the system clock, rebuilt when the default time zone changes
+    public static synchronized TriggerCalculator system() {
+        ZoneId zone = ZoneId.systemDefault();
+        if (null == system || !system.clock.getZone().equals(zone))
+            system = new TriggerCalculator(Clock.system(zone));
+        return system;
+    }
+
+    public long now() {
+        return clock.millis();
+    }
+
+    public long next(Alarm alarm) {
+        return next(alarm.type, alarm.hours, alarm.minutes, clock.millis());
+    }
+
+// out[i] is the trigger of alarms.get(i), all computed against the same now
+    public void nextAll(List<Alarm> alarms, long[] out) {
+        long nowMillis = clock.millis();
+        for (int i = 0; i < alarms.size(); i++) {
+            Alarm alarm = alarms.get(i);
+            out[i] = next(alarm.type, alarm.hours, alarm.minutes, nowMillis);
+        }
+    }
+
+    public synchronized long next(int type, int hours, int minutes, long nowMillis) {
+        long span = hours * HOUR_MS + minutes * MINUTE_MS;
+        switch (type) {
+            case TYPE_FIXED -> {
+                long local = Math.floorDiv(nowMillis + offsetAt(nowMillis), DAY_MS) * DAY_MS + span
+                ,   utc = toUtc(local, nowMillis)
+                ;
+// past is decided on the instant: today's time moved out of a gap, or the second pass of an overlap, may still be ahead
+                if (utc < nowMillis)
+                    utc = toUtc(local + DAY_MS, nowMillis); // if time already past then set for tomorrow
+                return utc;
+            }
+            case TYPE_ELAPSED, TYPE_RECURRING -> {
+                return nowMillis + span;
+            }
+            default -> {
+                return nowMillis;
+            }
+        }
+    }
+
+    public synchronized long localDay(long utcMillis) {
+        return Math.floorDiv(utcMillis + offsetAt(utcMillis), DAY_MS);
+    }
+
+// hours:minutes on the given local epoch day, with the same gap and overlap rules as FIXED
+    public synchronized long atLocal(long day, int hours, int minutes, long notBefore) {
+        return toUtc(day * DAY_MS + hours * HOUR_MS + minutes * MINUTE_MS, notBefore);
+    }
+
+/*
+Local wall time to epoch millis. The offsets a day before and a day after are
+the only candidates: both valid is an overlap, neither is a gap.
+*/
+    synchronized long toUtc(long local, long notBefore) {
+        long before = offsetAt(local - DAY_MS)
+        ,   after = offsetAt(local + DAY_MS)
+        ;
+        if (before == after)
+            return local - before;
+        boolean beforeValid = offsetAt(local - before) == before
+        ,   afterValid = offsetAt(local - after) == after
+        ;
+        if (beforeValid && afterValid) {
+            long early = Math.min(local - before, local - after)
+            ,   late = Math.max(local - before, local - after)
+            ;
+            return early >= notBefore ? early : late;
+        }
+        if (beforeValid)
+            return local - before;
+        if (afterValid)
+            return local - after;
+        return local - before; // gap: as far forward as it is long
+    }
+
+    synchronized long offsetAt(long utcMillis) {
+        if (utcMillis >= cachedFrom && utcMillis < cachedUntil)
+            return cachedOffset;
+        cachedOffset = rules.getOffset(Instant.ofEpochMilli(utcMillis)).getTotalSeconds() * 1000L;
+        if (rules.isFixedOffset()) {
+            cachedFrom = Long.MIN_VALUE;
+            cachedUntil = Long.MAX_VALUE;
+            return cachedOffset;
+        }
+// transitions are on whole seconds: the previous one is at or before utcMillis
+        ZoneOffsetTransition prev = rules.previousTransition(Instant.ofEpochSecond(Math.floorDiv(utcMillis, 1000) + 1))
+        ,   next = rules.nextTransition(Instant.ofEpochMilli(utcMillis))
+        ;
+        cachedFrom = null == prev ? Long.MIN_VALUE : prev.toEpochSecond() * 1000;
+        cachedUntil = null == next ? Long.MAX_VALUE : next.toEpochSecond() * 1000;
+        return cachedOffset;
+    }
+
+// "yyyy-MM-dd HH:mm" in the calculator's zone
+    public synchronized void appendLocal(long millis, StringBuilder sb) {
+        long local = millis + offsetAt(millis)
+        ,   days = Math.floorDiv(local, DAY_MS)
+        ;
+        int minuteOfDay = (int) ((local - days * DAY_MS) / MINUTE_MS);
+// civil date from days since 1970-01-01, proleptic Gregorian
+        long z = days + 719468
+        ,   era = Math.floorDiv(z, 146097)
+        ,   doe = z - era * 146097
+        ,   yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365
+        ,   doy = doe - (365 * yoe + yoe / 4 - yoe / 100)
+        ,   mp = (5 * doy + 2) / 153
+        ,   day = doy - (153 * mp + 2) / 5 + 1
+        ,   month = mp < 10 ? mp + 3 : mp - 9
+        ,   year = yoe + era * 400 + (month <= 2 ? 1 : 0)
+        ;
+        sb.append(year).append('-');
+        pad2(sb, (int) month).append('-');
+        pad2(sb, (int) day).append(' ');
+        pad2(sb, minuteOfDay / 60).append(':');
+        pad2(sb, minuteOfDay % 60);
+    }
+
+    private static StringBuilder pad2(StringBuilder sb, int v) {
+        if (v < 10)
+            sb.append('0');
+        return sb.append(v);
+    }
+}
@@ -0,0 +1,58 @@
+package com.davidauz.zzpal.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Merges alarms into as few wakeups as possible.
+An alarm with trigger t and tolerance w may go off anywhere in [t, t + w],
+never early. Sorted by trigger, an alarm joins the current wakeup while its
+trigger is within what every alarm already in it accepts; the wakeup is then
+the window shared by all of them. This greedy pass gives the minimum number
+of wakeups.
+*/
+public class WakeupPlanner {
+
+    public static class Wakeup {
+        public final long startMillis   // every alarm in the wakeup is due by then
+        ,   windowMillis                // how late it may go off without missing a tolerance
+        ;
+        public final int alarms;
+
+        Wakeup(long startMillis, long windowMillis, int alarms) {
+            this.startMillis = startMillis;
+            this.windowMillis = windowMillis;
+            this.alarms = alarms;
+        }
+    }
+
+// triggers and tolerances in millis, in any order; the wakeups come out in time order
+    public static List<Wakeup> plan(long[] triggers, long[] tolerances, int n) {
+        List<Wakeup> wakeups = new ArrayList<>();
+        if (0 == n)
+            return wakeups;
+        long[][] sorted = new long[n][];
+        for (int i = 0; i < n; i++)
+            sorted[i] = new long[] {triggers[i], triggers[i] + Math.max(0, tolerances[i])};
+        Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+        long start = sorted[0][0]
+        ,   end = sorted[0][1]
+        ;
+        int count = 1;
+        for (int i = 1; i < n; i++) {
+            if (sorted[i][0] <= end) {
+                start = sorted[i][0];
+                end = Math.min(end, sorted[i][1]);
+                count++;
+                continue;
+            }
+            wakeups.add(new Wakeup(start, end - start, count));
+            start = sorted[i][0];
+            end = sorted[i][1];
+            count = 1;
+        }
+        wakeups.add(new Wakeup(start, end - start, count));
+        return wakeups;
+    }
+}
@@ -0,0 +1,295 @@
+package com.davidauz.zzpal.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/*
+The alarm sound, kept off the main thread: players are made, prepared and
+started on the "zzpal-audio" thread, at urgent-audio priority. Listener
+calls come on the main thread.
+    long sounds   MediaPlayer with prepareAsync. prewarm() prepares the
+                  player for a sound about to be needed (AlarmReceiver, or
+                  the alarm due next), then start() only has to start it.
+    short sounds  SoundPool: decoded to PCM once and kept loaded, so play()
+                  is the whole start. Short is under SHORT_SOUND_MS, as
+                  measured when the sound last went through a MediaPlayer.
+Time to first sample: for a MediaPlayer, when the playback position first
+moves, less what was already played by then; for SoundPool, at play().
+Which MediaPlayer plays, prepares or waits warm is kept by PlayerSlots.
+*/
+public class AlarmAudioEngine {
+    public interface Listener {
+        void onStarted(long wallMillis);     // the player was told to play
+        void onFirstSample(long wallMillis); // and it was heard
+        void onFailed(String why);
+    }
+
+    private static final String TAG = "zzzPal.audio"
+    ,   PREFS = "zzpal_audio" // sound uri -> duration in ms
+    ;
+    private static final long SHORT_SOUND_MS = 5000
+    ,   POLL_MS = 5
+    ,   POLL_TIMEOUT_MS = 2000
+    ,   WARM_KEEP_MS = 60 * 1000L // an unused prewarmed player is let go after this
+    ;
+    private static AlarmAudioEngine instance;
+
+    private final Context context;
+    private final SharedPreferences durations;
+    private final AudioAttributes attributes = new AudioAttributes.Builder()
+        .setUsage(AudioAttributes.USAGE_ALARM)
+        .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+        .build();
+    private final Handler audio
+    ,   main = new Handler(Looper.getMainLooper())
+    ;
+// the rest is touched on the audio thread only
+    private final PlayerSlots<MediaPlayer> players = new PlayerSlots<>(new PlayerSlots.Players<MediaPlayer>() {
+        @Override
+        public MediaPlayer open(String uri) {
+            return prepare(uri);
+        }
+
+        @Override
+        public void start(MediaPlayer mp, Listener listener) {
+            startPlayer(mp, listener);
+        }
+
+        @Override
+        public void stop(MediaPlayer mp) {
+            try {
+                if (mp.isPlaying())
+                    mp.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "MediaPlayer in invalid state", e);
+            }
+        }
+
+        @Override
+        public void release(MediaPlayer mp) {
+            mp.release();
+        }
+    });
+    private SoundPool pool;
+    private String poolUri; // the sound in the pool, loaded or loading
+    private int soundId
+    ,   streamId
+    ;
+    private boolean soundLoaded;
+    private Listener poolListener; // waiting for the sound to load
+
+    private AlarmAudioEngine(Context context) {
+        this.context = context;
+        durations = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        HandlerThread thread = new HandlerThread("zzpal-audio", Process.THREAD_PRIORITY_URGENT_AUDIO);
+        thread.start();
+        audio = new Handler(thread.getLooper());
+    }
+
+    public static synchronized AlarmAudioEngine get(Context con) {
+        if (null == instance)
+            instance = new AlarmAudioEngine(con.getApplicationContext());
+        return instance;
+    }
+
+// plays uri once, in place of whatever was playing
+    public void start(String uri, Listener listener) {
+        audio.post(() -> doStart(uri, listener));
+    }
+
+// gets uri ready to start, for keepMillis at least
+    public void prewarm(String uri, long keepMillis) {
+        audio.post(() -> doPrewarm(uri, keepMillis));
+    }
+
+    public void stop() {
+        audio.post(this::doStop);
+    }
+
+    private boolean isShort(String uri) {
+        long ms = durations.getLong(uri, 0);
+        return 0 < ms && ms < SHORT_SOUND_MS;
+    }
+
+    private void remember(String uri, int ms) {
+        if (null != uri && 0 < ms && ms != durations.getLong(uri, 0))
+            durations.edit().putLong(uri, ms).apply();
+    }
+
+    private void doStart(String uri, Listener listener) {
+        doStop();
+        if (null == uri) {
+            failed(listener, "no sound set");
+        } else if (isShort(uri)) {
+            playShort(uri, listener);
+        } else {
+            playLong(uri, listener); // the warm player if it is for uri
+        }
+    }
+
+    private void playLong(String uri, Listener listener) {
+        if (!players.start(uri, listener))
+            failed(listener, "cannot open " + uri);
+    }
+
+    private void doPrewarm(String uri, long keepMillis) {
+        if (null == uri || players.isWarm(uri))
+            return;
+        if (isShort(uri)) {
+            if (!uri.equals(poolUri) && 0 == streamId)
+                load(uri);
+            return;
+        }
+        MediaPlayer mp = players.prewarm(uri);
+        if (null != mp)
+            audio.postDelayed(() -> players.dropWarm(mp), keepMillis + WARM_KEEP_MS);
+    }
+
+    private MediaPlayer prepare(String uri) {
+        MediaPlayer mp = new MediaPlayer();
+        try {
+            mp.setAudioAttributes(attributes);
+            mp.setDataSource(context, Uri.parse(uri));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot open " + uri + ": " + e.getMessage());
+            mp.release();
+            return null;
+        }
+        mp.setOnPreparedListener(this::onPrepared);
+        mp.setOnErrorListener(this::onError);
+        mp.prepareAsync();
+        return mp;
+    }
+
+    private void onPrepared(MediaPlayer mp) {
+        String uri = players.uriOf(mp);
+        if (null != uri)
+            remember(uri, mp.getDuration());
+        players.onPrepared(mp);
+    }
+
+    private boolean onError(MediaPlayer mp, int what, int extra) {
+        Listener listener = players.onError(mp);
+        if (null != listener)
+            failed(listener, "player error " + what + "/" + extra);
+        return true;
+    }
+
+    private void startPlayer(MediaPlayer mp, Listener listener) {
+        mp.start();
+        long now = System.currentTimeMillis();
+        main.post(() -> listener.onStarted(now));
+        long until = SystemClock.uptimeMillis() + POLL_TIMEOUT_MS;
+        audio.postDelayed(() -> pollFirstSample(mp, listener, until), POLL_MS);
+    }
+
+// the position moves once the first buffer has been played out
+    private void pollFirstSample(MediaPlayer mp, Listener listener, long until) {
+        if (mp != players.playing())
+            return;
+        int position = mp.getCurrentPosition();
+        if (0 < position) {
+            long heard = System.currentTimeMillis() - position;
+            main.post(() -> listener.onFirstSample(heard));
+        } else if (SystemClock.uptimeMillis() < until) {
+            audio.postDelayed(() -> pollFirstSample(mp, listener, until), POLL_MS);
+        } else {
+            Log.w(TAG, "No first sample from " + players.uriOf(mp) + " after " + POLL_TIMEOUT_MS + " ms");
+        }
+    }
+
+    private void playShort(String uri, Listener listener) {
+        if (!uri.equals(poolUri) && !load(uri)) {
+            playLong(uri, listener); // the slow way then
+        } else if (soundLoaded) {
+            playPool(listener);
+        } else {
+            poolListener = listener; // onLoaded plays it
+        }
+    }
+
+// one sound at a time in the pool, replacing the one there
+    private boolean load(String uri) {
+        if (null == pool) {
+            pool = new SoundPool.Builder().setMaxStreams(1).setAudioAttributes(attributes).build();
+            pool.setOnLoadCompleteListener(this::onLoaded);
+        }
+        if (0 != soundId)
+            pool.unload(soundId);
+        soundId = 0;
+        soundLoaded = false;
+        poolUri = null;
+        try (AssetFileDescriptor fd = context.getContentResolver().openAssetFileDescriptor(Uri.parse(uri), "r")) {
+            if (null == fd)
+                return false;
+            soundId = pool.load(fd, 1); // the pool keeps its own copy of the descriptor
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot load " + uri + ": " + e.getMessage());
+            return false;
+        }
+        if (0 == soundId)
+            return false;
+        poolUri = uri;
+        return true;
+    }
+
+    private void onLoaded(SoundPool soundPool, int sampleId, int status) {
+        if (sampleId != soundId)
+            return;
+        Listener listener = poolListener;
+        poolListener = null;
+        if (0 != status) {
+            String uri = poolUri;
+            Log.w(TAG, "Sound not decoded: " + uri + ", status " + status);
+            durations.edit().remove(uri).apply(); // MediaPlayer from now on
+            soundId = 0;
+            poolUri = null;
+            if (null != listener)
+                playLong(uri, listener);
+            return;
+        }
+        soundLoaded = true;
+        if (null != listener)
+            playPool(listener);
+    }
+
+    private void playPool(Listener listener) {
+        streamId = pool.play(soundId, 1f, 1f, 1, 0, 1f);
+        if (0 == streamId) {
+            failed(listener, "sound pool refused " + poolUri);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        main.post(() -> {
+            listener.onStarted(now);
+            listener.onFirstSample(now); // already PCM, no decoder to wait for
+        });
+    }
+
+    private void failed(Listener listener, String why) {
+        Log.w(TAG, why);
+        main.post(() -> listener.onFailed(why));
+    }
+
+    private void doStop() {
+        poolListener = null;
+        if (0 != streamId) {
+            pool.stop(streamId);
+            streamId = 0;
+        }
+        players.stop();
+    }
+}
@@ -10,13 +10,12 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.media.AudioAttributes;
-import android.media.MediaPlayer;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.VibrationEffect;
 import android.os.Vibrator;
 import android.util.Log;
@@ -25,10 +24,12 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.os.HandlerCompat;
 import com.davidauz.zzpal.MainActivity;
 import com.davidauz.zzpal.R;
+import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmFire;
+import com.davidauz.zzpal.entity.AlarmScheduler;
+import com.davidauz.zzpal.entity.AlarmSnapshot;
 import com.davidauz.zzpal.views.AlarmReceiver;
 
-import java.io.IOException;
-
 /*
 A Service is a component designed to perform long-running operations in the background,
 even when the app is not in the foreground (or even closed).
@@ -51,8 +52,12 @@ alarm triggers.
 public class AlarmService extends Service {
     private static final int NOTIFICATION_ID = 123;
     private static final String CHANNEL_ID = "ALARM_CHANNEL";
-    private MediaPlayer mediaPlayer;
+    private static final long PREWARM_WINDOW_MS = 2 * 60 * 1000L; // the next alarm's sound is readied when it is this close
     private Vibrator vibrator;
+    private AlarmFire ringing; // the ring going on, for FireHistory
+    private long ringStartElapsed;
+    private final Handler handler = HandlerCompat.createAsync(Looper.getMainLooper());
+    private Runnable timeout; // ends the ring going on after its duration
 
 
     @Override
@@ -62,20 +67,40 @@ public class AlarmService extends Service {
 
             if (-1 != alarmId) {
                 Notification notification = createNotification(alarmId);
-                AppLogger.getInstance().log("AlarmService Got alarm #" + alarmId);
-                int duration = intent.getIntExtra("DURATION", 60); // Default 60s
-                boolean vibrate = intent.getBooleanExtra("VIBRATE", false);
-                String audioUri = intent.getStringExtra("AUDIO_URI");
+                AppLogger.getInstance().event(LogRecord.EV_SERVICE_START, alarmId, "AlarmService Got alarm");
+// the configuration as stored now, from the mapped snapshot; the extras are what it was when armed
+                Alarm alarm = AlarmSnapshot.get(this).find(alarmId);
+                if (null == alarm)
+                    alarm = AlarmScheduler.alarmFromExtras(intent);
+                int duration = alarm.durationSeconds;
+                boolean vibrate = alarm.vibrate;
+                String audioUri = alarm.audioUri;
+// recurring: the next occurrence is armed from here, the app may not be running; a one-shot is marked done
+                new AlarmScheduler(this).rearm(alarm, intent.getLongExtra("TARGET_MILLIS", 0));
 
-                startAlarmSound(audioUri);
+                finishRing(AlarmFire.END_STOPPED); // cut short by this one
+                ringing = new AlarmFire();
+                ringing.alarmId = alarmId;
+                ringing.scheduledMillis = intent.getLongExtra("TARGET_MILLIS", 0);
+                ringing.receivedMillis = intent.getLongExtra("RECEIVED_MILLIS", System.currentTimeMillis());
+                ringStartElapsed = SystemClock.elapsedRealtime();
+                startAlarmSound(audioUri, intent.getIntExtra("TYPE", 0));
+                prewarmNext();
                 if (vibrate)
                     startVibration(duration);
 
-                Handler handler = HandlerCompat.createAsync(Looper.getMainLooper());
-                handler.postDelayed(() -> {
+                if (null != timeout)
+                    handler.removeCallbacks(timeout); // the ring it was for is over
+                AlarmFire ring = ringing;
+                timeout = () -> {
+                    if (ring != ringing)
+                        return; // a later alarm took over, its own timeout ends it
+                    timeout = null;
+                    finishRing(AlarmFire.END_TIMEOUT);
                     stopAlarm();
                     stopSelf();
-                }, duration * 1000L);
+                };
+                handler.postDelayed(timeout, duration * 1000L);
             }
         }catch(Exception e){
             Log.e("AlarmService", e.getMessage());
@@ -130,23 +155,35 @@ public class AlarmService extends Service {
     }
 
 
-    private void startAlarmSound(String audioUri) {
-        mediaPlayer = new MediaPlayer();
-        try {
-            mediaPlayer.setDataSource(this, android.net.Uri.parse(audioUri));
-            AudioAttributes attributes = new AudioAttributes.Builder()
-                .setUsage(AudioAttributes.USAGE_ALARM)
-                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
-                .build();
-            mediaPlayer.setAudioAttributes(attributes);
-            mediaPlayer.prepare();
-            mediaPlayer.start();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Error playing alarm sound", Toast.LENGTH_SHORT).show();
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
+// asynchronous: the engine reports back on this thread, to the ring it was started for
+    private void startAlarmSound(String audioUri, int type) {
+        AlarmFire fire = ringing;
+        FireStats stats = FireStats.get(this);
+        AlarmAudioEngine.get(this).start(audioUri, new AlarmAudioEngine.Listener() {
+            @Override
+            public void onStarted(long wallMillis) {
+                fire.audioStartMillis = wallMillis;
+                stats.record(type, FireStats.METRIC_AUDIO, fire.scheduledMillis, wallMillis);
+            }
+
+            @Override
+            public void onFirstSample(long wallMillis) {
+                stats.record(type, FireStats.METRIC_SAMPLE, fire.scheduledMillis, wallMillis);
+            }
+
+            @Override
+            public void onFailed(String why) {
+                Toast.makeText(AlarmService.this, "Error playing alarm sound", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+// the alarm due next, if it is near: its player is prepared while this one rings
+    private void prewarmNext() {
+        long now = System.currentTimeMillis();
+        Alarm next = AlarmSnapshot.get(this).nextAfter(now);
+        if (null != next && next.nextTriggerMillis - now < PREWARM_WINDOW_MS)
+            AlarmAudioEngine.get(this).prewarm(next.audioUri, next.nextTriggerMillis - now);
     }
 
     private void startVibration(int duration) {
@@ -161,19 +198,18 @@ public class AlarmService extends Service {
         }
     }
 
+// the ring going on, if any, into the fire history; a ring without sound counts as failed
+    private void finishRing(int endReason) {
+        if (null == ringing)
+            return;
+        ringing.ringMillis = SystemClock.elapsedRealtime() - ringStartElapsed;
+        ringing.endReason = 0 == ringing.audioStartMillis ? AlarmFire.END_FAILED : endReason;
+        FireHistory.get(this).record(ringing);
+        ringing = null;
+    }
+
     private void stopAlarm() {
-        if (mediaPlayer != null) {
-            try {
-                if (mediaPlayer.isPlaying()) {
-                    mediaPlayer.stop();
-                }
-            } catch (IllegalStateException e) {
-                Log.w("AlarmService", "MediaPlayer in invalid state", e);
-            } finally {
-                mediaPlayer.release();
-                mediaPlayer = null; // Prevent reuse
-            }
-        }
+        AlarmAudioEngine.get(this).stop();
         if (vibrator != null) {
             vibrator.cancel();
         }
@@ -221,7 +257,12 @@ public class AlarmService extends Service {
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
         }
+        if (null != timeout)
+            handler.removeCallbacks(timeout);
+        timeout = null;
+        finishRing(AlarmFire.END_STOPPED);
         stopAlarm();
+        FireHistory.get(this).flush();
     }
 
     @Override
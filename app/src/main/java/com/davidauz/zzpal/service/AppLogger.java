@@ -1,37 +1,104 @@
 package com.davidauz.zzpal.service;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Environment;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
-import android.widget.TextView;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AppLogger {
     private static final String LOG_DIR = "zzPalLogs"
     ,   LOG_FILE = "zzz_log.txt"
+    ,   EVENTS_FILE = "zzz_events.bin"
+    ,   PREFS = "zzpal_logger"
+    ,   PREF_STRUCTURED = "structured"
+    ,   PREF_OVERFLOW = "overflow"
+    ,   PREF_TAIL_LINES = "tail_lines"
     ,   TAG="zzzPal.tag"
     ;
     private static AppLogger instance;
-    private TextView logTextView;
-    private StringBuilder logBuffer;
-    private static final int MAX_LOG_LINES = 100; // to prevent memory issues
+    private volatile LogObserver logObserver;
+    private final LogRing<LogRecord> logBuffer;
+    private final TimestampCache displayTimestamps = new TimestampCache();
+    private static final int MAX_LOG_LINES = 100; // default, to prevent memory issues
     private Context context;
+    private LogSegments segments;
+    private volatile LogWriter writer;
+    private boolean structured;
+    private LogWriter.OverflowPolicy overflow = LogWriter.OverflowPolicy.DROP_OLDEST;
+
+// the logs layout; called on the logging thread, must not block
+    public interface LogObserver {
+        void onAppended(LogRecord r);
+        void onCleared();
+    }
 
     private AppLogger(Context con) {
-        logBuffer = new StringBuilder();
         context=con;
+        logBuffer = new LogRing<>(null==con ? MAX_LOG_LINES : getPrefs().getInt(PREF_TAIL_LINES, MAX_LOG_LINES));
+        if(null!=con) {
+            structured = getPrefs().getBoolean(PREF_STRUCTURED, false);
+            try {
+                overflow = LogWriter.OverflowPolicy.valueOf(getPrefs().getString(PREF_OVERFLOW, overflow.name()));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Unknown overflow policy, keeping " + overflow);
+            }
+            openWriter();
+        }
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    private void openWriter() {
+        segments = new LogSegments(getLogDir(), structured ? EVENTS_FILE : LOG_FILE);
+        writer = new LogWriter(segments, structured ? LogWriter.Format.BINARY : LogWriter.Format.TEXT);
+        writer.setOverflowPolicy(overflow);
+    }
+
+// binary records (LogRecordCodec) instead of text lines; the other format's files are left alone
+    public synchronized void setStructuredLogging(boolean on) {
+        if(null==context || on==structured)
+            return;
+        structured=on;
+        getPrefs().edit().putBoolean(PREF_STRUCTURED, on).apply();
+        writer.close();
+        openWriter();
+    }
+
+    public boolean isStructuredLogging() {
+        return structured;
+    }
+
+// what log() does when the writer's queue is full, see LogWriter.OverflowPolicy
+    public synchronized void setOverflowPolicy(LogWriter.OverflowPolicy p) {
+        if(null==context || p==overflow)
+            return;
+        overflow=p;
+        getPrefs().edit().putString(PREF_OVERFLOW, p.name()).apply();
+        writer.setOverflowPolicy(p);
+    }
+
+    public synchronized LogWriter.OverflowPolicy getOverflowPolicy() {
+        return overflow;
     }
 
 //to be called in mainActivity.onStart because needs context
     public static synchronized void init(Context con) {
+        if(null!=instance && null!=instance.writer)
+            instance.writer.close();
         instance = new AppLogger(con);
-        instance.logBuffer=instance.readLogs();
+        instance.loadTail();
         instance.log("********** AppLogger init ********** ");
     }
 
@@ -41,39 +108,65 @@ public class AppLogger {
         return instance;
     }
 
-    public void setLogTextView(TextView textView) {
-        logTextView = textView;
-        logTextView.setMovementMethod(new ScrollingMovementMethod());
-        if (logTextView != null && logBuffer.length() > 0) {
-            logTextView.setText(logBuffer.toString());
+// returns the current tail, the observer then gets every record logged after it
+    public synchronized List<LogRecord> setLogObserver(LogObserver observer) {
+        logObserver = observer;
+        return logBuffer.snapshot();
+    }
+
+// older records from the log files, for paging; skips the newest alreadyShown. Not on the main thread
+    public LogHistory openHistory(int alreadyShown) {
+        LogWriter w;
+        LogSegments segs;
+        boolean binary;
+        synchronized (this) {
+            w=writer;
+            segs=segments;
+            binary=structured;
+        }
+        if(null==segs)
+            return null;
+        w.sync(1000);
+        return new LogHistory(segs, binary, alreadyShown);
+    }
+
+// indexed lookup, see LogIndex.search; not on the main thread
+    public List<LogRecord> search(long alarmId, int code, long fromMillis, long toMillis, int limit) {
+        LogWriter w;
+        boolean binary;
+        synchronized (this) {
+            w=writer;
+            binary=structured;
         }
+        if(null==w)
+            return new ArrayList<>();
+        w.sync(1000);
+        return w.getIndex().search(alarmId, code, fromMillis, toMillis, limit, binary);
+    }
+
+    public TimestampCache getDisplayTimestamps() {
+        return displayTimestamps;
     }
 
 
 
     public void log(String message) {
-        String timestamp = android.text.format.DateFormat.format("HH:mm:ss", new java.util.Date()).toString();
-        String logEntry = "[" + timestamp + "] " + message + "\n";
-        writeToFileSync(logEntry);
-        logBuffer.append(logEntry);
-        limitBufferSize();
-        if (logTextView != null) {
-// Must run on UI thread
-            logTextView.post(() -> {
-                if (logTextView != null) {
-                    logTextView.setText(logBuffer.toString());
-// Auto-scroll to bottom
-                    logTextView.post(() -> {
-                        int scrollAmount = logTextView.getLayout().getLineTop(logTextView.getLineCount()) - logTextView.getHeight();
-                        if (scrollAmount > 0) {
-                            logTextView.scrollTo(0, scrollAmount);
-                        } else {
-                            logTextView.scrollTo(0, 0);
-                        }
-                    });
-                }
-            });
+        event(LogRecord.EV_MESSAGE, LogRecord.NO_ALARM, message);
+    }
+
+// code is one of LogRecord.EV_*, alarmId is LogRecord.NO_ALARM when not about an alarm
+    public void event(int code, long alarmId, String message) {
+        LogRecord logEntry = new LogRecord(System.currentTimeMillis(), code, alarmId, message);
+        LogWriter w = writer;
+        if(null!=w)
+            w.enqueue(logEntry);
+        LogObserver observer;
+        synchronized (this) {
+            logBuffer.add(logEntry);
+            observer = logObserver;
         }
+        if (observer != null)
+            observer.onAppended(logEntry);
     }
 
     // Overloaded method for logging exceptions
@@ -81,45 +174,35 @@ public class AppLogger {
         log("Exception: " + e.getMessage() + "\nStack trace: " + android.util.Log.getStackTraceString(e));
     }
 
-// Remove reference when logs layout is hidden (prevent memory leaks)
-    public void clearLogTextView(boolean bDeleteFileToo) {
-        logBuffer.setLength(0);
+    public void clearLogs(boolean bDeleteFileToo) {
+        logBuffer.clear();
 
-        if(bDeleteFileToo)
-            try {
-                File logFile = getLogFile();
-                if (logFile.exists()) {
-                    logFile.delete();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Error clearing logs", e);
-            }
+        if(bDeleteFileToo && null!=writer)
+            writer.clear();
 
-        if (logTextView != null) {
-            logTextView.post(() -> {
-                if (logTextView != null) {
-                    logTextView.setText("");
-                }
-            });
-        }
+        LogObserver observer = logObserver;
+        if (observer != null)
+            observer.onCleared();
     }
 
-    private void limitBufferSize() {
-        String[] lines = logBuffer.toString().split("\n");
-        if (lines.length > MAX_LOG_LINES) {
-            StringBuilder newBuffer = new StringBuilder();
-            for (int i = lines.length - MAX_LOG_LINES; i < lines.length; i++) {
-                newBuffer.append(lines[i]).append("\n");
-            }
-            logBuffer = newBuffer;
-        }
+// records kept in memory for the logs screen; the newest ones stay
+    public void setMaxLogLines(int lines) {
+        logBuffer.setCapacity(lines);
+        if(null!=context)
+            getPrefs().edit().putInt(PREF_TAIL_LINES, logBuffer.capacity()).apply();
     }
 
-    private File getLogFile() throws IOException {
-        File logDir;
-        if(null==context)
-            return null;
+    public int getMaxLogLines() {
+        return logBuffer.capacity();
+    }
+
+// copy of the in-memory tail, oldest first
+    public List<LogRecord> getLogTail() {
+        return logBuffer.snapshot();
+    }
 
+    private File getLogDir() {
+        File logDir;
         if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
             logDir = new File(context.getExternalFilesDir(null), LOG_DIR);
         } else {
@@ -130,50 +213,82 @@ public class AppLogger {
             logDir.mkdirs();
         }
 
-        return new File(logDir, LOG_FILE);
+        return logDir;
     }
 
-    private synchronized void writeToFileSync(String logMessage) {
-        FileOutputStream fos = null;
-        try {
-            File logFile = getLogFile();
-            if(null==logFile)
-                return;
-            fos = new FileOutputStream(logFile, true);
-            fos.write(logMessage.getBytes());
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to log file", e);
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing log file", e);
-                }
-            }
-        }
+    public long getDroppedEntries() {
+        return null==writer ? 0 : writer.getDroppedEntries();
     }
 
+    public long getFlushedEntries() {
+        return null==writer ? 0 : writer.getFlushedEntries();
+    }
 
+// last lines of the log into the ring, on a background thread: init is called on the main thread.
+// The history is opened here so that what gets logged from now on is not read back.
+    private void loadTail() {
+        if(null==segments)
+            return;
+        LogHistory history = new LogHistory(segments, structured, 0);
+        Thread t = new Thread(() -> {
+            List<LogRecord> tail;
+            try {
+                tail = history.loadOlder(logBuffer.capacity());
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading log file", e);
+                tail = List.of(LogRecord.raw("Error reading logs: " + e.getMessage()));
+            }
+            synchronized (this) {
+                logBuffer.prependAll(tail);
+            }
+        }, "zzpal-log-tail");
+        t.setDaemon(true);
+        t.start();
+    }
 
-    public StringBuilder readLogs() {
+// whole log as text, whatever the on-disk format, up to what was logged before the call; not on the main thread
+    public void exportLogs(Writer out) throws IOException {
+        LogWriter w;
+        LogSegments segs;
+        boolean binary;
+        synchronized (this) {
+            w=writer;
+            segs=segments;
+            binary=structured;
+        }
+        if(null==segs)
+            return;
+        w.sync(1000);
+        TimestampCache ts = new TimestampCache();
         StringBuilder sb = new StringBuilder();
-        try {
-            File logFile = getLogFile();
-            if (null==logFile||!logFile.exists())
-                return sb;
+        IOException[] failed = new IOException[1];
+        readRecords(segs, binary, r -> {
+            if(null!=failed[0])
+                return;
+            sb.setLength(0);
+            r.render(sb, ts);
+            sb.append('\n');
+            try {
+                out.append(sb);
+            } catch (IOException e) {
+                failed[0]=e;
+            }
+        });
+        if(null!=failed[0])
+            throw failed[0];
+    }
 
-            BufferedReader reader = new BufferedReader(new FileReader(logFile));
+    private static void readRecords(LogSegments segs, boolean binary, LogRecordCodec.Sink sink) throws IOException {
+        try (InputStream in = segs.openStream()) {
+            if(binary) {
+                LogRecordCodec.decodeAll(in, sink);
+                return;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
             String line;
             while ((line = reader.readLine()) != null) {
-                sb.append(line).append("\n");
+                sink.accept(LogRecord.raw(line));
             }
-            reader.close();
-            return sb;
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading log file", e);
-            sb.append("Error reading logs: " + e.getMessage());
-            return sb;
         }
     }
 
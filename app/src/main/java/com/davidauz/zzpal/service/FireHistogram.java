@@ -0,0 +1,106 @@
+package com.davidauz.zzpal.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+Fixed-memory histogram of delays in milliseconds.
+Values below 8 get a bucket each, above that every power of two is split in
+8 buckets, so a percentile is reported within 12.5% of the real value.
+Delays above 2^26 ms (about 18 hours) all go in the last bucket; max is exact.
+*/
+public class FireHistogram {
+    private static final int SUB_BITS = 3
+    ,   SUB = 1 << SUB_BITS
+    ,   MAX_EXP = 26
+    ,   BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB
+    ;
+    private final long[] counts = new long[BUCKETS];
+    private long total
+    ,   max
+    ;
+
+    public synchronized void record(long delayMs) {
+        long v = Math.max(0, delayMs); // fired early: counted as on time
+        counts[bucketOf(v)]++;
+        total++;
+        max = Math.max(max, v);
+    }
+
+    public synchronized long count() {
+        return total;
+    }
+
+    public synchronized long max() {
+        return max;
+    }
+
+// upper bound of the bucket holding the q-th quantile (0..1), 0 when empty
+    public synchronized long percentile(double q) {
+        if (0 == total)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total))
+        ,   seen = 0
+        ;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = 0;
+        total = 0;
+        max = 0;
+    }
+
+// sparse: only the buckets that were hit
+    public synchronized void write(DataOutputStream out) throws IOException {
+        out.writeLong(total);
+        out.writeLong(max);
+        int used = 0;
+        for (long c : counts)
+            if (0 != c)
+                used++;
+        out.writeShort(used);
+        for (int i = 0; i < BUCKETS; i++) {
+            if (0 != counts[i]) {
+                out.writeShort(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    public synchronized void read(DataInputStream in) throws IOException {
+        clear();
+        total = in.readLong();
+        max = in.readLong();
+        for (int n = in.readShort(); n > 0; n--) {
+            int i = in.readShort();
+            long c = in.readLong();
+            if (0 <= i && i < BUCKETS)
+                counts[i] = c;
+        }
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB)
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        return Math.min(BUCKETS - 1, (exp - SUB_BITS + 1) * SUB + sub);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB)
+            return bucket;
+        int exp = bucket / SUB + SUB_BITS - 1
+        ,   sub = bucket % SUB
+        ;
+        return ((long) (SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,124 @@
+package com.davidauz.zzpal.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+
+import com.davidauz.zzpal.database.AlarmDatabase;
+import com.davidauz.zzpal.database.DbDispatcher;
+import com.davidauz.zzpal.entity.AlarmFire;
+import com.davidauz.zzpal.entity.AlarmFireDao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+Fire history in the database, alarm_fires and alarm_fire_days.
+AlarmService hands over each finished ring with record(); rows are kept in
+memory and inserted BATCH at a time, or FLUSH_DELAY_MS after the first one,
+on the maintenance lane: the fire path never waits for the database.
+Once a day FireRollupWorker sums the raw rows into daily rollups and drops
+the raw rows older than RAW_RETENTION_DAYS. The history screen reads the
+rollups only.
+*/
+public class FireHistory {
+    private static final String TAG = "zzzPal.history"
+    ,   PREFS = "zzpal_history"
+    ,   PREF_ROLLED_ID = "rolled_to_id" // raw rows up to this id are in the rollups
+    ,   ROLLUP_WORK = "fire_rollup"
+    ;
+    private static final int BATCH = 16;
+    private static final long FLUSH_DELAY_MS = 2000
+    ,   DAY_MS = 24 * 60 * 60 * 1000L
+    ;
+    public static final int RAW_RETENTION_DAYS = 30;
+
+    private static FireHistory instance;
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<AlarmFire> pending = new ArrayList<>(); // guarded by this
+    private boolean flushPosted;
+
+    private FireHistory(Context context) {
+        this.context = context;
+    }
+
+    public static synchronized FireHistory get(Context con) {
+        if (null == instance)
+            instance = new FireHistory(con.getApplicationContext());
+        return instance;
+    }
+
+    public synchronized void record(AlarmFire fire) {
+        pending.add(fire);
+        if (BATCH <= pending.size()) {
+            flush();
+        } else if (!flushPosted) {
+            flushPosted = true;
+            handler.postDelayed(this::flush, FLUSH_DELAY_MS);
+        }
+    }
+
+// what is pending goes to the database, in one transaction on the maintenance lane
+    public synchronized void flush() {
+        flushPosted = false;
+        if (pending.isEmpty())
+            return;
+        List<AlarmFire> batch = new ArrayList<>(pending);
+        pending.clear();
+        try {
+            DbDispatcher.lane(DbDispatcher.LANE_MAINTENANCE).execute(() ->
+                AlarmDatabase.getDatabase(context).alarmFireDao().insertAll(batch));
+        } catch (RejectedExecutionException e) {
+            pending.addAll(0, batch); // with the next one
+            Log.w(TAG, "History batch not queued: " + e.getMessage());
+        }
+    }
+
+/*
+Brings alarm_fire_days up to date and prunes alarm_fires; not on the main
+thread. The watermark is the last raw row id summed: the rows inserted since
+are added to their days, whichever day that is, so a batch flushed after its
+day was rolled up still counts. Raw rows are dropped once they are summed and
+older than RAW_RETENTION_DAYS. Local days use the current zone offset.
+Synchronized: the UI lane and FireRollupWorker may both call it, and the
+watermark must not be read twice for the same rows.
+*/
+    public static synchronized void rollup(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis()
+        ,   offset = TimeZone.getDefault().getOffset(now)
+        ,   today = Math.floorDiv(now + offset, DAY_MS)
+        ,   rolledId = prefs.getLong(PREF_ROLLED_ID, 0)
+        ,   keepFrom = (today - RAW_RETENTION_DAYS) * DAY_MS - offset
+        ;
+        AlarmDatabase db = AlarmDatabase.getDatabase(context);
+        AlarmFireDao dao = db.alarmFireDao();
+        long toId = db.runInTransaction(() -> {
+            long last = dao.getMaxId();
+            dao.rollup(rolledId, last, offset);
+            dao.prune(keepFrom, last);
+            return last;
+        });
+        prefs.edit().putLong(PREF_ROLLED_ID, toId).apply();
+    }
+
+// once a day, when the device is charging; kept across restarts by WorkManager
+    public static void scheduleRollup(Context context) {
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(FireRollupWorker.class, 1, TimeUnit.DAYS)
+            .setConstraints(new Constraints.Builder().setRequiresCharging(true).build())
+            .build();
+        WorkManager.getInstance(context)
+            .enqueueUniquePeriodicWork(ROLLUP_WORK, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+}
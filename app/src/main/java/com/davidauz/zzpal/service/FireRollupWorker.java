@@ -0,0 +1,39 @@
+package com.davidauz.zzpal.service;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.davidauz.zzpal.database.DbDispatcher;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+// the daily FireHistory.rollup, run on the maintenance lane like every other background database job
+public class FireRollupWorker extends Worker {
+    public FireRollupWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        FutureTask<Void> task = new FutureTask<>(() -> FireHistory.rollup(getApplicationContext()), null);
+        try {
+            DbDispatcher.lane(DbDispatcher.LANE_MAINTENANCE).execute(task);
+            task.get();
+            return Result.success();
+        } catch (RejectedExecutionException e) {
+            return Result.retry();
+        } catch (ExecutionException e) {
+            AppLogger.getInstance().log("Fire history rollup failed: " + e.getCause());
+            return Result.retry();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+    }
+}
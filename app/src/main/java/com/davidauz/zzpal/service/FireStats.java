@@ -0,0 +1,157 @@
+package com.davidauz.zzpal.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.davidauz.zzpal.entity.Alarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+How late alarms fire, per alarm type:
+    RECEIVE  target time -> AlarmReceiver.onReceive
+    AUDIO    target time -> alarm sound started in AlarmService
+    SAMPLE   target time -> first sample of the sound played (AlarmAudioEngine)
+The target time travels with the alarm intent (TARGET_MILLIS).
+Histograms are saved to fire_stats.bin after each alarm and loaded back when
+a new process first needs them, both on one daemon thread: the fire path only
+enqueues. Records and clears go through the same thread, after the load.
+*/
+public class FireStats {
+    private static final String TAG="zzzPal.firestats"
+    ,   FILE_NAME = "fire_stats.bin"
+    ;
+    private static final int VERSION = 2; // 1 had no SAMPLE
+    public static final int METRIC_RECEIVE = 0
+    ,   METRIC_AUDIO = 1
+    ,   METRIC_SAMPLE = 2
+    ;
+    private static final String[] METRIC_NAMES = {"receive", "audio", "sample"};
+    private static final int[] TYPES = {Alarm.TYPE_FIXED, Alarm.TYPE_ELAPSED, Alarm.TYPE_RECURRING};
+
+    private static FireStats instance;
+    private final File file;
+    private final FireHistogram[][] histograms = new FireHistogram[TYPES.length][METRIC_NAMES.length];
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "zzpal-firestats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FireStats(Context con) {
+        file = new File(con.getFilesDir(), FILE_NAME);
+        for (FireHistogram[] row : histograms)
+            for (int m = 0; m < row.length; m++)
+                row[m] = new FireHistogram();
+        io.execute(() -> {
+            load();
+            loaded.countDown();
+        });
+    }
+
+    public static synchronized FireStats get(Context con) {
+        if (null == instance)
+            instance = new FireStats(con.getApplicationContext());
+        return instance;
+    }
+
+    public void record(int alarmType, int metric, long targetMillis, long whenMillis) {
+        int t = typeIndex(alarmType);
+        if (t < 0 || targetMillis <= 0)
+            return;
+        long delay = whenMillis - targetMillis;
+        io.execute(() -> {
+            histograms[t][metric].record(delay);
+            save();
+        });
+    }
+
+    public void clear() {
+        io.execute(() -> {
+            for (FireHistogram[] row : histograms)
+                for (FireHistogram h : row)
+                    h.clear();
+            save();
+        });
+    }
+
+// waits for the file to be loaded: not on the main thread
+    public String describe() {
+        try {
+            if (!loaded.await(1, TimeUnit.SECONDS))
+                Log.w(TAG, "Fire stats not loaded yet");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < TYPES.length; t++) {
+            sb.append(Alarm.typeDescr(TYPES[t])).append('\n');
+            for (int m = 0; m < METRIC_NAMES.length; m++) {
+                FireHistogram h = histograms[t][m];
+                sb.append(String.format(Locale.ROOT, "\t%s: n=%d p50=%s p99=%s max=%s\n", METRIC_NAMES[m], h.count()
+                ,   formatMs(h.percentile(0.5)), formatMs(h.percentile(0.99)), formatMs(h.max())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatMs(long ms) {
+        if (ms < 1000)
+            return ms + "ms";
+        if (ms < 60_000)
+            return String.format(Locale.ROOT, "%.1fs", ms / 1000.0);
+        return String.format(Locale.ROOT, "%.1fm", ms / 60_000.0);
+    }
+
+    private static int typeIndex(int alarmType) {
+        for (int i = 0; i < TYPES.length; i++)
+            if (TYPES[i] == alarmType)
+                return i;
+        return -1;
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt()
+            ,   metrics = 1 == version ? 2 : METRIC_NAMES.length
+            ;
+            if (1 != version && VERSION != version)
+                return;
+            for (FireHistogram[] row : histograms)
+                for (int m = 0; m < metrics; m++)
+                    row[m].read(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+        }
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            for (FireHistogram[] row : histograms)
+                for (FireHistogram h : row)
+                    h.write(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            return;
+        }
+        if (!tmp.renameTo(file))
+            Log.e(TAG, "Cannot replace " + file);
+    }
+}
@@ -0,0 +1,177 @@
+package com.davidauz.zzpal.service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+Pages the on-disk log backwards, newest first, for the logs layout and for the
+tail loaded at startup.
+Plain text segments are read from their end with LogTailReader, so only the
+blocks holding the requested lines are touched. Archives and binary segments
+cannot be read backwards: they are decoded one whole segment at a time, which
+SEGMENT_BYTES keeps bounded.
+Text is returned a record at a time, as the ring and the list hold it: the
+lines after a "[HH:mm:ss] " line, up to the next one, are the rest of its
+message (a stack trace).
+Files and the live segment length are captured when the history is created,
+so records logged afterwards are never returned; the newest skipNewest records
+are left out as well because the caller already has them. If the live segment
+is rotated in the meantime it is read under its closed name.
+*/
+public class LogHistory {
+    private final LogSegments segments;
+    private final List<File> files;
+    private final File live
+    ,   rotatedLive // what live is renamed to when rotated
+    ;
+    private final long liveLength;
+    private final boolean binary;
+    private int nextFile;   // going backwards
+    private int skip;
+    private LogTailReader tail;
+    private final ArrayDeque<String> continuation = new ArrayDeque<>(); // lines below a header not read yet
+    private List<LogRecord> current = Collections.emptyList();
+    private int currentEnd;
+
+    public LogHistory(LogSegments segments, boolean binary, int skipNewest) {
+        this.segments = segments;
+        synchronized (segments) { // no rotate() in between
+            files = segments.listClosed();
+            live = segments.getLiveFile();
+            rotatedLive = segments.nextClosedFile();
+            liveLength = live.length();
+        }
+        files.add(live);
+        this.binary = binary;
+        nextFile = files.size() - 1;
+        skip = skipNewest;
+    }
+
+// up to max records older than the ones returned so far, oldest first
+    public synchronized List<LogRecord> loadOlder(int max) throws IOException {
+        List<LogRecord> page = new ArrayList<>(max); // newest first while filling
+        while (page.size() < max) {
+            if (null != tail) {
+                LogRecord r = previousRecord();
+                if (null == r) {
+                    tail.close();
+                    tail = null;
+                } else if (0 < skip) {
+                    skip--;
+                } else {
+                    page.add(r);
+                }
+                continue;
+            }
+            if (0 == currentEnd) {
+                if (nextFile < 0)
+                    break;
+                openSegment(files.get(nextFile), nextFile == files.size() - 1);
+                nextFile--;
+                continue;
+            }
+            if (0 < skip) {
+                int skipped = Math.min(skip, currentEnd);
+                currentEnd -= skipped;
+                skip -= skipped;
+                continue;
+            }
+            while (page.size() < max && 0 < currentEnd)
+                page.add(current.get(--currentEnd));
+        }
+        Collections.reverse(page);
+        return page;
+    }
+
+    public synchronized boolean isExhausted() {
+        return nextFile < 0 && 0 == currentEnd && null == tail;
+    }
+
+// "[HH:mm:ss] ", as LogRecord.render starts a record
+    static boolean startsRecord(String line) {
+        return 11 <= line.length() && '[' == line.charAt(0) && ':' == line.charAt(3) && ':' == line.charAt(6)
+            && ']' == line.charAt(9) && ' ' == line.charAt(10)
+            && isDigits(line, 1) && isDigits(line, 4) && isDigits(line, 7);
+    }
+
+    private static boolean isDigits(String s, int at) {
+        return Character.isDigit(s.charAt(at)) && Character.isDigit(s.charAt(at + 1));
+    }
+
+// the record ending where the last one read began, null at the start of the file
+    private LogRecord previousRecord() throws IOException {
+        while (true) {
+            String line = tail.previousLine();
+            if (null == line)
+                return continuation.isEmpty() ? null : joined(null); // lines above the first header
+            if (startsRecord(line))
+                return joined(line);
+            continuation.addFirst(line);
+        }
+    }
+
+    private LogRecord joined(String header) {
+        StringBuilder sb = new StringBuilder(null == header ? "" : header);
+        boolean first = null == header;
+        while (!continuation.isEmpty()) {
+            if (!first)
+                sb.append('\n');
+            sb.append(continuation.pollFirst());
+            first = false;
+        }
+        return LogRecord.raw(sb.toString());
+    }
+
+    private void openSegment(File f, boolean isLive) throws IOException {
+        current = Collections.emptyList();
+        currentEnd = 0;
+        InputStream in;
+        synchronized (segments) { // rotate() and the gzip rename hold it too: what is opened here stays put
+            if (isLive && (rotatedLive.exists() || new File(rotatedLive.getPath() + ".gz").exists()))
+                f = rotatedLive;
+            if (!binary && !f.getName().endsWith(".gz") && f.exists()) {
+                tail = new LogTailReader(f, isLive ? liveLength : f.length());
+                return;
+            }
+            try {
+                in = LogSegments.openSegment(f);
+            } catch (IOException e) {
+// evicted since the history was opened
+                return;
+            }
+        }
+        List<LogRecord> records = new ArrayList<>();
+        try (InputStream closing = in) {
+            InputStream source = isLive ? new ByteArrayInputStream(closing.readNBytes((int) liveLength)) : closing;
+            if (binary) {
+                LogRecordCodec.decodeAll(source, records::add);
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8));
+                StringBuilder record = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (null != record && !startsRecord(line)) {
+                        record.append('\n').append(line);
+                        continue;
+                    }
+                    if (null != record)
+                        records.add(LogRecord.raw(record.toString()));
+                    record = new StringBuilder(line);
+                }
+                if (null != record)
+                    records.add(LogRecord.raw(record.toString()));
+            }
+        }
+        current = records;
+        currentEnd = records.size();
+    }
+}
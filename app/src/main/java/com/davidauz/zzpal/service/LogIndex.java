@@ -0,0 +1,346 @@
+package com.davidauz.zzpal.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+Sidecar index of the log: every record about an alarm or with an event code
+(see isIndexed) gets a fixed-size entry in the .idx file next to its segment
+    int   offset of the record in the (uncompressed) segment
+    int   length
+    long  epoch millis
+    long  alarm id
+    int   event code
+The whole index is kept in memory as per-segment postings by alarm id and by
+event code, so a query only visits the entries it returns. Entries are in time
+order within a segment, time ranges are found by binary search.
+Records in archives are read back by decompressing up to their offset.
+A search resolves its hits to files and reads them under the lock on this: the
+writer rotates and clears the segments under the same lock, so a hit is never
+read from a file renamed under it.
+*/
+public class LogIndex {
+    private static final String TAG="zzzPal.index";
+    public static final int ENTRY_BYTES = 28
+    ,   ANY_CODE = -1
+    ;
+
+    private static class Hit {
+        final File segment;
+        final int offset
+        ,   length
+        ;
+
+        Hit(File segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int v) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+    }
+
+    private static class Seg {
+        File data;  // renamed when the live segment is rotated
+        int count;
+        int[] offsets = new int[64]
+        ,   lengths = new int[64]
+        ;
+        long[] times = new long[64];
+        final HashMap<Long, IntList> byAlarm = new HashMap<>();
+        final HashMap<Integer, IntList> byCode = new HashMap<>();
+
+        Seg(File data) {
+            this.data = data;
+        }
+
+        void add(int offset, int length, long time, long alarmId, int code) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+            }
+            offsets[count] = offset;
+            lengths[count] = length;
+            times[count] = time;
+            if (LogRecord.NO_ALARM != alarmId)
+                postings(byAlarm, alarmId).add(count);
+            postings(byCode, code).add(count);
+            count++;
+        }
+
+        private static <K> IntList postings(HashMap<K, IntList> map, K key) {
+            IntList l = map.get(key);
+            if (null == l) {
+                l = new IntList();
+                map.put(key, l);
+            }
+            return l;
+        }
+    }
+
+    private final LogSegments segments;
+    private final List<Seg> segs = new ArrayList<>(); // oldest first, the last one is the live segment
+
+    public LogIndex(LogSegments segments) {
+        this.segments = segments;
+        segs.add(new Seg(segments.getLiveFile()));
+    }
+
+    public static boolean isIndexed(LogRecord r) {
+        return LogRecord.NO_TIME != r.timeMillis
+            && (LogRecord.EV_MESSAGE != r.code || LogRecord.NO_ALARM != r.alarmId);
+    }
+
+    public static void encode(ByteBuffer out, int offset, int length, LogRecord r) {
+        out.putInt(offset);
+        out.putInt(length);
+        out.putLong(r.timeMillis);
+        out.putLong(r.alarmId);
+        out.putInt(r.code);
+    }
+
+// reads the .idx files of the segments on disk; called by the writer thread before it writes anything
+    public synchronized void load() {
+        segs.clear();
+        for (File data : segments.listClosed()) {
+            Seg s = new Seg(data);
+            readEntries(s, segments.indexFileFor(data), false);
+            segs.add(s);
+        }
+        Seg live = new Seg(segments.getLiveFile());
+        readEntries(live, segments.indexFileFor(live.data), true);
+        segs.add(live);
+    }
+
+    public synchronized void add(int offset, int length, LogRecord r) {
+        segs.get(segs.size() - 1).add(offset, length, r.timeMillis, r.alarmId, r.code);
+    }
+
+    public synchronized void onRotated(File closedData) {
+        segs.get(segs.size() - 1).data = closedData;
+        segs.add(new Seg(segments.getLiveFile()));
+        evictMissing();
+    }
+
+    public synchronized void clear() {
+        segs.clear();
+        segs.add(new Seg(segments.getLiveFile()));
+    }
+
+/*
+alarmId may be NO_ALARM and code ANY_CODE to match anything; time range is [from, to).
+Returns at most limit records, the newest ones, oldest first; records that
+cannot be read back any more are skipped.
+*/
+    public synchronized List<LogRecord> search(long alarmId, int code, long from, long to, int limit, boolean binary) {
+        return read(query(alarmId, code, from, to, limit), binary);
+    }
+
+    private List<Hit> query(long alarmId, int code, long from, long to, int limit) {
+        List<Hit> hits = new ArrayList<>();
+        for (int si = segs.size() - 1; si >= 0 && hits.size() < limit; si--) {
+            Seg s = segs.get(si);
+            if (0 == s.count || s.times[0] >= to || s.times[s.count - 1] < from)
+                continue;
+            IntList postings = null;
+            if (LogRecord.NO_ALARM != alarmId) {
+                postings = s.byAlarm.get(alarmId);
+                if (null == postings)
+                    continue;
+            } else if (ANY_CODE != code) {
+                postings = s.byCode.get(code);
+                if (null == postings)
+                    continue;
+            }
+            int lo = lowerBound(s, from)
+            ,   hi = lowerBound(s, to)
+            ;
+            List<Hit> segHits = new ArrayList<>();
+            if (null == postings) {
+                for (int i = hi - 1; i >= lo && hits.size() + segHits.size() < limit; i--)
+                    segHits.add(new Hit(s.data, s.offsets[i], s.lengths[i]));
+            } else {
+                for (int p = postings.size - 1; p >= 0 && hits.size() + segHits.size() < limit; p--) {
+                    int i = postings.values[p];
+                    if (i < lo)
+                        break;
+                    if (i >= hi)
+                        continue;
+                    if (LogRecord.NO_ALARM != alarmId && ANY_CODE != code && !hasCode(s, i, code))
+                        continue;
+                    segHits.add(new Hit(s.data, s.offsets[i], s.lengths[i]));
+                }
+            }
+            hits.addAll(0, reversed(segHits));
+        }
+        return hits;
+    }
+
+// the records behind the hits, in the same order
+    private List<LogRecord> read(List<Hit> hits, boolean binary) {
+        List<LogRecord> records = new ArrayList<>(hits.size());
+        int i = 0;
+        while (i < hits.size()) {
+            File f = hits.get(i).segment;
+            int j = i;
+            while (j < hits.size() && hits.get(j).segment == f)
+                j++;
+            try {
+                readSegmentHits(hits.subList(i, j), binary, records);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read " + f, e);
+            }
+            i = j;
+        }
+        return records;
+    }
+
+    private void readSegmentHits(List<Hit> hits, boolean binary, List<LogRecord> out) throws IOException {
+        File f = hits.get(0).segment;
+        RandomAccessFile raf = null;
+        InputStream in;
+        synchronized (segments) { // the gzip rename holds it too: what is opened here stays put
+            if (f.exists() && !f.getName().endsWith(".gz")) {
+                raf = new RandomAccessFile(f, "r");
+                in = null;
+            } else {
+                in = LogSegments.openSegment(f);
+            }
+        }
+        if (null != raf) {
+            try (RandomAccessFile r = raf) {
+                long size = r.length();
+                for (Hit h : hits) {
+                    if (h.offset < 0 || h.length < 0 || size < h.offset + (long) h.length)
+                        continue;
+                    byte[] bytes = new byte[h.length];
+                    r.seek(h.offset);
+                    r.readFully(bytes);
+                    addDecoded(bytes, binary, out);
+                }
+            }
+            return;
+        }
+// archived: hits are in offset order, one pass over the decompressed segment
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(in))) {
+            long pos = 0;
+            for (Hit h : hits) {
+                if (h.offset < pos || h.length < 0 || LogRecordCodec.MAX_BODY_BYTES < h.length)
+                    continue;
+                skipFully(din, h.offset - pos);
+                byte[] bytes = new byte[h.length];
+                din.readFully(bytes);
+                pos = h.offset + (long) h.length;
+                addDecoded(bytes, binary, out);
+            }
+        }
+    }
+
+// a record that does not decode is a miss, not the end of the search
+    private static void addDecoded(byte[] bytes, boolean binary, List<LogRecord> out) {
+        try {
+            out.add(decode(bytes, binary));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Cannot decode an indexed record", e);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private static LogRecord decode(byte[] bytes, boolean binary) {
+        if (binary)
+            return LogRecordCodec.decodeFrame(bytes);
+        int end = bytes.length;
+        while (0 < end && ('\n' == bytes[end - 1] || '\r' == bytes[end - 1]))
+            end--;
+        return LogRecord.raw(new String(bytes, 0, end, StandardCharsets.UTF_8));
+    }
+
+    private void readEntries(Seg s, File idx, boolean live) {
+        if (!idx.exists())
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(idx, "rw")) {
+            long whole = raf.length() / ENTRY_BYTES * ENTRY_BYTES;
+            if (live && whole != raf.length())
+                raf.setLength(whole); // torn last entry, the writer appends after it
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)))) {
+                for (long n = whole / ENTRY_BYTES; n > 0; n--) {
+                    int offset = in.readInt()
+                    ,   length = in.readInt()
+                    ;
+                    long time = in.readLong()
+                    ,   alarmId = in.readLong()
+                    ;
+                    s.add(offset, length, time, alarmId, in.readInt());
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + idx, e);
+        }
+    }
+
+    private void evictMissing() {
+        while (segs.size() > 1 && !segs.get(0).data.exists()
+            && !new File(segs.get(0).data.getPath() + ".gz").exists())
+            segs.remove(0);
+    }
+
+    private static boolean hasCode(Seg s, int i, int code) {
+        IntList l = s.byCode.get(code);
+        if (null == l)
+            return false;
+        return 0 <= Arrays.binarySearch(l.values, 0, l.size, i);
+    }
+
+    private static int lowerBound(Seg s, long time) {
+        int lo = 0
+        ,   hi = s.count
+        ;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.times[mid] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static List<Hit> reversed(List<Hit> l) {
+        List<Hit> r = new ArrayList<>(l.size());
+        for (int i = l.size() - 1; i >= 0; i--)
+            r.add(l.get(i));
+        return r;
+    }
+}
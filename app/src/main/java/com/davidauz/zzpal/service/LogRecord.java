@@ -0,0 +1,63 @@
+package com.davidauz.zzpal.service;
+
+/*
+One log entry: the text line is only built when the record is rendered
+(logs layout, text segments, export), so logging itself allocates just this object.
+*/
+public class LogRecord {
+    public static final int EV_MESSAGE = 0
+    ,   EV_ALARM_RECEIVED = 1
+    ,   EV_SERVICE_START = 2
+    ,   EV_SCHEDULED = 3
+    ,   EV_CANCELLED = 4
+    ,   EV_ERROR = 5
+    ;
+    private static final String[] EVENT_NAMES =
+    {   "message"
+    ,   "received"
+    ,   "service"
+    ,   "scheduled"
+    ,   "cancelled"
+    ,   "error"
+    };
+    public static final long NO_ALARM = -1
+    ,   NO_TIME = -1  // record read back from a text segment: payload is the whole line
+    ;
+
+    public final long timeMillis;
+    public final int code;
+    public final long alarmId;
+    public final String payload;
+
+    public LogRecord(long timeMillis, int code, long alarmId, String payload) {
+        this.timeMillis = timeMillis;
+        this.code = code;
+        this.alarmId = alarmId;
+        this.payload = null == payload ? "" : payload;
+    }
+
+    public static LogRecord raw(String line) {
+        return new LogRecord(NO_TIME, EV_MESSAGE, NO_ALARM, line);
+    }
+
+    public static int eventCount() {
+        return EVENT_NAMES.length;
+    }
+
+    public static String eventName(int code) {
+        return 0 <= code && code < EVENT_NAMES.length ? EVENT_NAMES[code] : "event" + code;
+    }
+
+// "[HH:mm:ss] payload #id", no trailing newline
+    public void render(StringBuilder out, TimestampCache ts) {
+        if (NO_TIME == timeMillis) {
+            out.append(payload);
+            return;
+        }
+        out.append('[');
+        ts.append(timeMillis, out);
+        out.append("] ").append(payload);
+        if (NO_ALARM != alarmId)
+            out.append(" #").append(alarmId);
+    }
+}
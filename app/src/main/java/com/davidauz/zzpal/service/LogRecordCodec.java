@@ -0,0 +1,187 @@
+package com.davidauz.zzpal.service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+Binary form of a LogRecord, used by the structured log segments:
+    varint  body length
+    varint  epoch millis
+    varint  event code
+    varint  alarm id, zigzag so that NO_ALARM takes one byte
+    bytes   payload, UTF-8, up to the end of the body
+Encoding writes straight into the caller's buffer and allocates nothing.
+A body longer than MAX_BODY_BYTES is never written, so reading one means the
+frame is corrupt; so does a body that ends inside its own fields.
+*/
+public class LogRecordCodec {
+    public static final int MAX_BODY_BYTES = 1 << 20;
+
+    public interface Sink {
+        void accept(LogRecord record);
+    }
+
+    public static int frameLength(LogRecord r) {
+        int body = bodyLength(r);
+        return varintLength(body) + body;
+    }
+
+// the buffer must have frameLength(r) bytes remaining
+    public static void encode(LogRecord r, ByteBuffer out) {
+        putVarint(out, bodyLength(r));
+        putVarint(out, r.timeMillis);
+        putVarint(out, r.code);
+        putVarint(out, zigzag(r.alarmId));
+        putUtf8(r.payload, out);
+    }
+
+// reads frames until the end of the stream. A truncated or corrupt frame is
+// taken as the end: it is what a crash in the middle of a write leaves
+    public static void decodeAll(InputStream in, Sink sink) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        byte[] body = new byte[256];
+        while (true) {
+            long len;
+            try {
+                len = readVarint(din);
+            } catch (EOFException e) {
+                return;
+            }
+            if (len < 0 || len > MAX_BODY_BYTES)
+                return;
+            if (len > body.length)
+                body = new byte[(int) len];
+            LogRecord r;
+            try {
+                din.readFully(body, 0, (int) len);
+                r = decodeBody(ByteBuffer.wrap(body, 0, (int) len));
+            } catch (EOFException | IllegalArgumentException e) {
+                return;
+            }
+            sink.accept(r);
+        }
+    }
+
+// one whole frame, length prefix included; IllegalArgumentException if it is not one
+    public static LogRecord decodeFrame(byte[] frame) {
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        try {
+            long len = getVarint(in);
+            if (len < 0 || len > in.remaining())
+                throw new IllegalArgumentException("Malformed frame");
+            return decodeBody(ByteBuffer.wrap(frame, in.position(), (int) len));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed frame", e);
+        }
+    }
+
+// IllegalArgumentException if the body ends inside its fields
+    public static LogRecord decodeBody(ByteBuffer body) {
+        try {
+            long time = getVarint(body);
+            int code = (int) getVarint(body);
+            long z = getVarint(body);
+            long alarmId = (z >>> 1) ^ -(z & 1);
+            String payload = new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8);
+            return new LogRecord(time, code, alarmId, payload);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed frame", e);
+        }
+    }
+
+    public static int utf8Length(CharSequence s) {
+        int n = 0;
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                n += 1;
+            else if (c < 0x800)
+                n += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                n += 1; // unpaired, written as '?'
+            else
+                n += 3;
+        }
+        return n;
+    }
+
+    public static void putUtf8(CharSequence s, ByteBuffer out) {
+        for (int i = 0, len = s.length(); i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | cp >> 18));
+                out.put((byte) (0x80 | cp >> 12 & 0x3F));
+                out.put((byte) (0x80 | cp >> 6 & 0x3F));
+                out.put((byte) (0x80 | cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3F));
+                out.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static int bodyLength(LogRecord r) {
+        return varintLength(r.timeMillis) + varintLength(r.code) + varintLength(zigzag(r.alarmId)) + utf8Length(r.payload);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int varintLength(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (0 == (b & 0x80))
+                return v;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+// -1 for a varint that does not end within 64 bits
+    private static long readVarint(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if (0 == (b & 0x80))
+                return v;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,77 @@
+package com.davidauz.zzpal.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Fixed-capacity ring of log entries, the in-memory tail shown in the logs layout.
+Adding an entry when the ring is full overwrites the oldest one, so both
+append and eviction are O(1) and nothing is ever re-split or copied.
+*/
+public class LogRing<T> {
+    private Object[] entries;
+    private int head  // index of the oldest entry
+    ,   size
+    ;
+
+    public LogRing(int capacity) {
+        entries = new Object[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(T entry) {
+        int tail = (head + size) % entries.length;
+        entries[tail] = entry;
+        if (size < entries.length)
+            size++;
+        else
+            head = (head + 1) % entries.length;
+    }
+
+// older entries, oldest first, go in front of the current ones as far as there is room
+    public synchronized void prependAll(List<T> older) {
+        int n = Math.min(entries.length - size, older.size());
+        for (int i = 0; i < n; i++) {
+            head = (head - 1 + entries.length) % entries.length;
+            entries[head] = older.get(older.size() - 1 - i);
+            size++;
+        }
+    }
+
+// keeps the newest entries that still fit
+    public synchronized void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == entries.length)
+            return;
+        Object[] resized = new Object[capacity];
+        int keep = Math.min(size, capacity);
+        for (int i = 0; i < keep; i++)
+            resized[i] = entries[(head + size - keep + i) % entries.length];
+        entries = resized;
+        head = 0;
+        size = keep;
+    }
+
+    public synchronized int capacity() {
+        return entries.length;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = null;
+        head = 0;
+        size = 0;
+    }
+
+// oldest first
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> snapshot() {
+        List<T> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            copy.add((T) entries[(head + i) % entries.length]);
+        return copy;
+    }
+}
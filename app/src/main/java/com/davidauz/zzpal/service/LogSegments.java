@@ -0,0 +1,233 @@
+package com.davidauz.zzpal.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+On-disk layout of the log (same scheme for the .bin structured log):
+    zzz_log.txt                  live segment, appended by LogWriter
+    zzz_log.00000042.txt         closed segment, waiting to be compressed
+    zzz_log.00000041.txt.gz      archive
+    zzz_log.idx, zzz_log.00000041.idx   LogIndex sidecars, never compressed
+When the live segment reaches SEGMENT_BYTES it is closed and renamed, then
+gzipped on a background thread; the oldest archives are deleted as long as
+the whole directory is above MAX_TOTAL_BYTES.
+*/
+public class LogSegments {
+    private static final String TAG="zzzPal.segments";
+    public static final long SEGMENT_BYTES = 256 * 1024
+    ,   MAX_TOTAL_BYTES = 4 * 1024 * 1024
+    ;
+
+    private final File dir;
+    private final String liveName
+    ,   prefix
+    ,   closedExt
+    ,   archiveExt
+    ;
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "zzpal-log-gzip");
+        t.setDaemon(true);
+        return t;
+    });
+    private long nextSeq = -1;
+
+    public LogSegments(File dir, String liveName) {
+        this.dir = dir;
+        this.liveName = liveName;
+        int dot = liveName.lastIndexOf('.');
+        prefix = liveName.substring(0, dot) + ".";
+        closedExt = liveName.substring(dot);
+        archiveExt = closedExt + ".gz";
+    }
+
+    public File getLiveFile() {
+        if (!dir.exists())
+            dir.mkdirs();
+        return new File(dir, liveName);
+    }
+
+    public File indexFileFor(File data) {
+        String name = data.getName();
+        if (name.endsWith(".gz"))
+            name = name.substring(0, name.length() - 3);
+        return new File(dir, name.substring(0, name.length() - closedExt.length()) + ".idx");
+    }
+
+// the writer has closed its channels on the live segment; returns the closed segment, or null
+    public synchronized File rotate() {
+        File live = getLiveFile();
+        if (!live.exists())
+            return null;
+        File closed = new File(dir, prefix + seqName(nextSeq()) + closedExt);
+        if (!live.renameTo(closed)) {
+            Log.e(TAG, "Cannot rotate " + live);
+            return null;
+        }
+        File liveIdx = indexFileFor(live);
+        if (liveIdx.exists())
+            liveIdx.renameTo(indexFileFor(closed));
+        compressor.execute(() -> {
+            compress(closed);
+            evict();
+        });
+        return closed;
+    }
+
+// the name the live segment will get at the next rotate(); with the live length, under one lock on this
+    public synchronized File nextClosedFile() {
+        return new File(dir, prefix + seqName(peekSeq()) + closedExt);
+    }
+
+// closed segments and archives, oldest first; the live segment is not included
+    public synchronized List<File> listClosed() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && !name.equals(liveName)
+            && (name.endsWith(closedExt) || name.endsWith(archiveExt)));
+        if (null == files)
+            return new ArrayList<>();
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+// the whole log, oldest byte first, archives decompressed on the fly
+    public InputStream openStream() {
+        List<File> files = listClosed();
+        files.add(getLiveFile());
+        Iterator<File> it = files.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private InputStream next = advance();
+
+            private InputStream advance() {
+                while (it.hasNext()) {
+                    try {
+                        return openSegment(it.next());
+                    } catch (IOException e) {
+// compressed or evicted while we were reading: skip it
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasMoreElements() {
+                return null != next;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                InputStream current = next;
+                next = advance();
+                return current;
+            }
+        });
+    }
+
+    public static InputStream openSegment(File f) throws IOException {
+        if (f.getName().endsWith(".gz"))
+            return new GZIPInputStream(new FileInputStream(f), 8192);
+        if (f.exists())
+            return new FileInputStream(f);
+        File gz = new File(f.getPath() + ".gz");
+        if (gz.exists())
+            return new GZIPInputStream(new FileInputStream(gz), 8192);
+        throw new FileNotFoundException(f.getPath());
+    }
+
+    public synchronized void deleteAll() {
+        for (File f : listClosed()) {
+            f.delete();
+            indexFileFor(f).delete();
+        }
+        File live = getLiveFile();
+        live.delete();
+        indexFileFor(live).delete();
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (File f : listClosed())
+            total += f.length();
+        return total + getLiveFile().length();
+    }
+
+    private long peekSeq() {
+        if (nextSeq < 0) {
+            nextSeq = 0;
+            for (File f : listClosed())
+                nextSeq = Math.max(nextSeq, parseSeq(f.getName()) + 1);
+        }
+        return nextSeq;
+    }
+
+    private long nextSeq() {
+        long seq = peekSeq();
+        nextSeq++;
+        return seq;
+    }
+
+    private long parseSeq(String name) {
+        int end = name.indexOf('.', prefix.length());
+        try {
+            return Long.parseLong(name.substring(prefix.length(), end));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static String seqName(long seq) {
+        return String.format(Locale.ROOT, "%08d", seq);
+    }
+
+    private void compress(File closed) {
+        File tmp = new File(closed.getPath() + ".gz.tmp")
+        ,   gz = new File(closed.getPath() + ".gz")
+        ;
+        byte[] buf = new byte[8192];
+        try (InputStream in = new FileInputStream(closed);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 8192)) {
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        } catch (IOException e) {
+            Log.e(TAG, "Error compressing " + closed, e);
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            if (tmp.renameTo(gz))
+                closed.delete();
+            else
+                tmp.delete();
+        }
+    }
+
+    private synchronized void evict() {
+        List<File> closed = listClosed();
+        long total = totalBytes();
+        for (File f : closed) {
+            if (total <= MAX_TOTAL_BYTES)
+                break;
+            total -= f.length();
+            f.delete();
+            indexFileFor(f).delete();
+        }
+    }
+}
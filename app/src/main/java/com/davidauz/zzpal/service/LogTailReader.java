@@ -0,0 +1,103 @@
+package com.davidauz.zzpal.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/*
+Reads a text file backwards, one line at a time, starting from its end.
+Only the blocks holding the lines actually asked for are read, so getting the
+last few lines of a big file costs a couple of seeks instead of a full scan.
+*/
+public class LogTailReader implements Closeable {
+    private static final int BLOCK_SIZE = 8192;
+
+    private final RandomAccessFile file;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private byte[] carry = new byte[256]; // bytes of the line being assembled, from later blocks
+    private int carryLen
+    ,   cursor  // end of the unread bytes in block
+    ;
+    private long blockOffset; // file offset of block[0]
+    private boolean first = true
+    ,   done
+    ;
+
+// length: only the first length bytes are considered, the file may be growing
+    public LogTailReader(File f, long length) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        blockOffset = Math.min(length, file.length());
+    }
+
+// previous line without its newline, null once the start of the file is reached
+    public String previousLine() throws IOException {
+        if (done)
+            return null;
+        while (true) {
+            for (int i = cursor - 1; i >= 0; i--) {
+                if ('\n' == block[i]) {
+                    String line = build(i + 1, cursor);
+                    cursor = i;
+                    return line;
+                }
+            }
+            if (0 == blockOffset) {
+                done = true;
+                if (0 == cursor && 0 == carryLen && first)
+                    return null;
+                return build(0, cursor);
+            }
+            keep(0, cursor);
+            readPreviousBlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readPreviousBlock() throws IOException {
+        int n = (int) Math.min(BLOCK_SIZE, blockOffset);
+        blockOffset -= n;
+        file.seek(blockOffset);
+        file.readFully(block, 0, n);
+        cursor = n;
+        if (first) {
+// a file ending with a newline has no empty last line
+            if (0 < cursor && '\n' == block[cursor - 1])
+                cursor--;
+            first = false;
+        }
+    }
+
+    private String build(int from, int to) {
+        int len = to - from;
+        byte[] bytes = new byte[len + carryLen];
+        System.arraycopy(block, from, bytes, 0, len);
+        System.arraycopy(carry, 0, bytes, len, carryLen);
+        carryLen = 0;
+        int end = bytes.length;
+        if (0 < end && '\r' == bytes[end - 1])
+            end--;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+// block[from..to) goes in front of what is already carried
+    private void keep(int from, int to) {
+        int len = to - from;
+        if (0 == len)
+            return;
+        if (carryLen + len > carry.length) {
+            byte[] bigger = new byte[Math.max(carry.length * 2, carryLen + len)];
+            System.arraycopy(carry, 0, bigger, len, carryLen);
+            carry = bigger;
+        } else {
+            System.arraycopy(carry, 0, carry, len, carryLen);
+        }
+        System.arraycopy(block, from, carry, 0, len);
+        carryLen += len;
+    }
+}
@@ -0,0 +1,364 @@
+package com.davidauz.zzpal.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Background writer for the log file.
+Callers only pay for an enqueue: a single daemon thread drains the queue, packs
+the entries into one buffer and writes them with a single call on a channel
+that stays open (group commit).
+The buffer is written when it grows past FLUSH_BYTES or when FLUSH_INTERVAL_MS
+have passed since the last write, whichever comes first.
+The live segment is rotated by LogSegments once it reaches SEGMENT_BYTES.
+Every file operation happens on the writer thread, including clear().
+sync(), clear() and close() travel in the queue as Markers, behind the records
+logged before them; overflow never drops a Marker.
+Indexed records also get an entry in the LogIndex sidecar, written right after the data.
+Records are rendered (TEXT) or encoded (BINARY) here, off the caller's thread.
+*/
+public class LogWriter {
+    private static final String TAG="zzzPal.writer";
+
+    public enum Format {
+        TEXT    // one rendered line per record
+    ,   BINARY  // LogRecordCodec frames
+    }
+
+    public enum OverflowPolicy {
+        DROP_NEWEST // the entry being logged is lost
+    ,   DROP_OLDEST // the oldest queued entry is lost to make room
+    ,   BLOCK       // caller waits up to BLOCK_TIMEOUT_MS, then the entry is dropped
+    }
+
+    private static final int QUEUE_CAPACITY = 1024
+    ,   FLUSH_BYTES = 16 * 1024
+    ;
+    private static final long FLUSH_INTERVAL_MS = 1000
+    ,   BLOCK_TIMEOUT_MS = 50
+    ;
+
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ByteBuffer pending = ByteBuffer.allocate(FLUSH_BYTES);
+    private final AtomicLong droppedEntries = new AtomicLong()
+    ,   flushedEntries = new AtomicLong()
+    ,   flushedBatches = new AtomicLong()
+    ;
+    private final LogSegments segments;
+    private final Format format;
+    private final TimestampCache timestamps = new TimestampCache();
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread thread;
+    private volatile OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+    private volatile boolean running = true; // false once close() was called
+    private boolean stopped; // the STOP marker was reached, writer thread only
+    private final LogIndex index;
+    private final ByteBuffer pendingIdx = ByteBuffer.allocate(4 * 1024);
+    private FileChannel channel
+    ,   idxChannel
+    ;
+    private long liveBytes;
+    private int pendingEntries;
+    private long lastFlushNanos = System.nanoTime();
+
+    public LogWriter(LogSegments segs, Format fmt) {
+        segments = segs;
+        format = fmt;
+        index = new LogIndex(segs);
+        thread = new Thread(this::loop, "zzpal-log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void setOverflowPolicy(OverflowPolicy p) {
+        policy = p;
+    }
+
+    public long getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    public long getFlushedEntries() {
+        return flushedEntries.get();
+    }
+
+    public long getFlushedBatches() {
+        return flushedBatches.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+// never blocks unless the policy is BLOCK
+    public void enqueue(LogRecord entry) {
+        if (!running || queue.offer(entry))
+            return;
+        switch (policy) {
+            case DROP_NEWEST -> droppedEntries.incrementAndGet();
+            case DROP_OLDEST -> {
+                while (!queue.offer(entry)) {
+                    droppedEntries.incrementAndGet();
+                    if (!evictOldest())
+                        return; // nothing but markers queued: the new entry goes
+                }
+            }
+            case BLOCK -> {
+                try {
+                    if (!queue.offer(entry, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                        droppedEntries.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedEntries.incrementAndGet();
+                }
+            }
+        }
+    }
+
+// waits until everything enqueued so far is on disk
+    public boolean sync(long timeoutMs) {
+        return await(new Marker(Marker.SYNC), timeoutMs);
+    }
+
+// deletes every segment and its index, on the writer thread so that nothing is half written.
+// Does not wait: whatever is logged after this call is kept
+    public void clear() {
+        Marker m = new Marker(Marker.CLEAR);
+        try {
+            if (!queue.offer(m, BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.e(TAG, "Log queue full, logs not cleared");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public LogIndex getIndex() {
+        return index;
+    }
+
+// the writer drains what was logged before, writes it and closes the files; does not wait for that.
+// No interrupt: it would close the channel under a write and lose the last batch
+    public void close() {
+        if (!running)
+            return;
+        running = false;
+        try {
+            if (!queue.offer(new Marker(Marker.STOP), BLOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.e(TAG, "Log queue full, log writer left running");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e(TAG, "Interrupted while closing, log writer left running");
+        }
+    }
+
+// the oldest record that is not a Marker, false if there is none
+    private boolean evictOldest() {
+        for (Iterator<LogRecord> it = queue.iterator(); it.hasNext(); ) {
+            if (!(it.next() instanceof Marker)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean await(Marker marker, long timeoutMs) {
+        try {
+            if (!running || !queue.offer(marker, timeoutMs, TimeUnit.MILLISECONDS))
+                return false;
+            return marker.done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void loop() {
+        index.load();
+        List<LogRecord> batch = new ArrayList<>(64);
+        while (!stopped) {
+            try {
+                LogRecord first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (null != first) {
+                    append(first);
+                    queue.drainTo(batch, 256);
+                    for (LogRecord e : batch)
+                        append(e);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Log writer interrupted, going on until close()");
+            }
+            if (0 < pendingEntries
+            && (FLUSH_BYTES / 2 <= pending.position() || FLUSH_INTERVAL_MS <= elapsedSinceFlushMs()))
+                flush();
+        }
+// what raced in past the running check in enqueue
+        queue.drainTo(batch);
+        for (LogRecord e : batch)
+            append(e);
+        flush();
+        closeChannels();
+    }
+
+    private long elapsedSinceFlushMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFlushNanos);
+    }
+
+    private void append(LogRecord entry) {
+        if (entry instanceof Marker) {
+            Marker m = (Marker) entry;
+            if (Marker.STOP == m.kind) {
+                stopped = true; // the records drained with it are appended all the same
+            } else if (Marker.CLEAR == m.kind) {
+                pending.clear();
+                pendingIdx.clear();
+                droppedEntries.addAndGet(pendingEntries);
+                pendingEntries = 0;
+                closeChannels();
+                synchronized (index) { // no search in between, see LogIndex
+                    segments.deleteAll();
+                    index.clear();
+                }
+            } else {
+                flush();
+            }
+            m.done.countDown();
+            return;
+        }
+        int need;
+        if (Format.TEXT == format) {
+            line.setLength(0);
+            entry.render(line, timestamps);
+            line.append('\n');
+            need = LogRecordCodec.utf8Length(line);
+        } else {
+            need = LogRecordCodec.frameLength(entry);
+            if (LogRecordCodec.MAX_BODY_BYTES < need) {
+                droppedEntries.incrementAndGet(); // a reader would take it for a corrupt frame
+                return;
+            }
+        }
+        boolean indexed = LogIndex.isIndexed(entry);
+        if (need > pending.remaining() || (indexed && LogIndex.ENTRY_BYTES > pendingIdx.remaining()))
+            flush();
+        if (!openChannels()) {
+            droppedEntries.incrementAndGet();
+            return;
+        }
+        int offset = (int) (liveBytes + pending.position());
+// too big for the buffer: goes straight to the file
+        ByteBuffer target = need > pending.capacity() ? ByteBuffer.allocate(need) : pending;
+        if (Format.TEXT == format)
+            LogRecordCodec.putUtf8(line, target);
+        else
+            LogRecordCodec.encode(entry, target);
+        if (indexed) {
+            LogIndex.encode(pendingIdx, offset, need, entry);
+            index.add(offset, need, entry);
+        }
+        if (target != pending) {
+            target.flip();
+            write(target, 1);
+            return;
+        }
+        pendingEntries++;
+    }
+
+    private void flush() {
+        if (0 == pendingEntries)
+            return;
+        pending.flip();
+        write(pending, pendingEntries);
+        pending.clear();
+        pendingEntries = 0;
+    }
+
+// data first, then the index entries pointing into it
+    private void write(ByteBuffer buf, int entries) {
+        lastFlushNanos = System.nanoTime();
+        try {
+            while (buf.hasRemaining())
+                liveBytes += channel.write(buf);
+            pendingIdx.flip();
+            while (pendingIdx.hasRemaining())
+                idxChannel.write(pendingIdx);
+            pendingIdx.clear();
+            flushedEntries.addAndGet(entries);
+            flushedBatches.incrementAndGet();
+            if (LogSegments.SEGMENT_BYTES <= liveBytes) {
+                closeChannels();
+                synchronized (index) { // no search in between, see LogIndex
+                    File closed = segments.rotate();
+                    if (null != closed)
+                        index.onRotated(closed);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to log file", e);
+            droppedEntries.addAndGet(entries);
+            pendingIdx.clear();
+            closeChannels();
+        }
+    }
+
+    private boolean openChannels() {
+        if (null != channel)
+            return true;
+        try {
+            File live = segments.getLiveFile();
+            channel = new FileOutputStream(live, true).getChannel();
+            liveBytes = channel.size();
+            idxChannel = new FileOutputStream(segments.indexFileFor(live), true).getChannel();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening log file", e);
+            closeChannels();
+            return false;
+        }
+    }
+
+    private void closeChannels() {
+        close(channel);
+        close(idxChannel);
+        channel = null;
+        idxChannel = null;
+    }
+
+    private static void close(FileChannel c) {
+        if (null == c)
+            return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing log file", e);
+        }
+    }
+
+    private static class Marker extends LogRecord {
+        static final int SYNC = 0
+        ,   CLEAR = 1
+        ,   STOP = 2
+        ;
+        final CountDownLatch done = new CountDownLatch(1);
+        final int kind;
+
+        Marker(int kind) {
+            super(NO_TIME, EV_MESSAGE, NO_ALARM, null);
+            this.kind = kind;
+        }
+    }
+}
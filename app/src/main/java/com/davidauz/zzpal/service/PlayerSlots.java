@@ -0,0 +1,139 @@
+package com.davidauz.zzpal.service;
+
+/*
+The long-sound players of AlarmAudioEngine: the one playing or preparing to,
+and the one prepared ahead (warm). Plain Java over Players, so the state
+handling can be tested off the device.
+A player is started once, when it is both prepared and wanted: a stop while
+it is still preparing releases it and its late onPrepared is ignored, a
+second start in place of the first releases the first.
+The audio thread only.
+*/
+class PlayerSlots<P> {
+    interface Players<P> {
+        P open(String uri);                              // preparing asynchronously, null if it cannot be opened
+        void start(P player, AlarmAudioEngine.Listener listener);
+        void stop(P player);                             // whether it is playing or not
+        void release(P player);
+    }
+
+    private final Players<P> players;
+    private P player; // playing, or preparing to
+    private String playerUri;
+    private AlarmAudioEngine.Listener playerListener; // null once started
+    private P warm; // prepared ahead for warmUri
+    private String warmUri;
+    private boolean warmReady;
+
+    PlayerSlots(Players<P> players) {
+        this.players = players;
+    }
+
+// plays uri in place of whatever was playing; false if it cannot be opened
+    boolean start(String uri, AlarmAudioEngine.Listener listener) {
+        stop();
+        if (null != warm && uri.equals(warmUri)) {
+            player = warm;
+            playerUri = warmUri;
+            playerListener = listener;
+            boolean ready = warmReady;
+            warm = null;
+            warmUri = null;
+            warmReady = false;
+            if (ready)
+                startPlayer(); // else onPrepared does
+            return true;
+        }
+        player = players.open(uri);
+        if (null == player)
+            return false;
+        playerUri = uri;
+        playerListener = listener;
+        return true;
+    }
+
+// the player now preparing for uri, null if it cannot be opened
+    P prewarm(String uri) {
+        releaseWarm();
+        warm = players.open(uri);
+        if (null == warm)
+            return null;
+        warmUri = uri;
+        return warm;
+    }
+
+    boolean isWarm(String uri) {
+        return null != warmUri && warmUri.equals(uri);
+    }
+
+// lets mp go if it is still the warm one, unused
+    void dropWarm(P mp) {
+        if (null != mp && mp == warm)
+            releaseWarm();
+    }
+
+// the uri mp was opened for, while it is in a slot
+    String uriOf(P mp) {
+        if (null == mp)
+            return null;
+        if (mp == warm)
+            return warmUri;
+        return mp == player ? playerUri : null;
+    }
+
+    P playing() {
+        return player;
+    }
+
+    void onPrepared(P mp) {
+        if (null == mp)
+            return;
+        if (mp == warm)
+            warmReady = true;
+        else if (mp == player && null != playerListener)
+            startPlayer();
+    }
+
+// the listener to tell, if mp was the one wanted
+    AlarmAudioEngine.Listener onError(P mp) {
+        if (null == mp)
+            return null;
+        if (mp == warm) {
+            releaseWarm();
+        } else if (mp == player) {
+            AlarmAudioEngine.Listener listener = playerListener;
+            stop();
+            return listener;
+        }
+        return null;
+    }
+
+// the warm player stays
+    void stop() {
+        playerListener = null;
+        playerUri = null;
+        if (null == player)
+            return;
+        P mp = player;
+        player = null;
+        try {
+            players.stop(mp);
+        } finally {
+            players.release(mp);
+        }
+    }
+
+    void releaseWarm() {
+        if (null != warm)
+            players.release(warm);
+        warm = null;
+        warmUri = null;
+        warmReady = false;
+    }
+
+    private void startPlayer() {
+        AlarmAudioEngine.Listener listener = playerListener;
+        playerListener = null;
+        players.start(player, listener);
+    }
+}
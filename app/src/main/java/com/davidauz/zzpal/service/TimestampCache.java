@@ -0,0 +1,35 @@
+package com.davidauz.zzpal.service;
+
+import java.util.TimeZone;
+
+/*
+Formats epoch millis as HH:mm:ss in the default zone.
+Log records arrive in bursts within the same second, so the last formatted
+second is kept and reused; the zone offset is only looked up again when the
+second changes.
+*/
+public class TimestampCache {
+    private final TimeZone zone = TimeZone.getDefault();
+    private final char[] chars = new char[8];
+    private long cachedSecond = Long.MIN_VALUE;
+
+    public synchronized void append(long millis, StringBuilder out) {
+        long second = Math.floorDiv(millis, 1000L);
+        if (second != cachedSecond) {
+            long local = Math.floorDiv(millis + zone.getOffset(millis), 1000L);
+            int secOfDay = (int) Math.floorMod(local, 86400L);
+            put2(0, secOfDay / 3600);
+            chars[2] = ':';
+            put2(3, secOfDay / 60 % 60);
+            chars[5] = ':';
+            put2(6, secOfDay % 60);
+            cachedSecond = second;
+        }
+        out.append(chars);
+    }
+
+    private void put2(int at, int value) {
+        chars[at] = (char) ('0' + value / 10);
+        chars[at + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -1,5 +1,6 @@
 package com.davidauz.zzpal.ui;
 
+import android.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -7,40 +8,114 @@ import android.widget.ImageButton;
 import android.widget.Switch;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.paging.PagingDataAdapter;
 import androidx.recyclerview.widget.DiffUtil;
-import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.davidauz.zzpal.R;
-import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.database.AlarmChange;
+import com.davidauz.zzpal.entity.AlarmRow;
+import com.davidauz.zzpal.entity.TriggerCalculator;
 
-public class AlarmAdapter extends ListAdapter<Alarm, AlarmAdapter.AlarmViewHolder> {
+import java.util.List;
+
+import kotlin.Unit;
+
+/*
+Rows come a page at a time; a row that is not loaded yet is null and shows
+as a blank placeholder.
+Writes the repository reports (applyChanges) are shown at once on the row
+they touch, with notifyItemChanged, over the loaded row: an overlay, until
+the pages reload from the database. Paging owns the positions, so inserts
+and removals only take their place in the list with that reload; a removed
+row shows as a placeholder meanwhile.
+The overlay is presentation only: every committed write still invalidates
+the PagingSource, and the loaded pages are queried and diffed again. That
+reload is kept on purpose, since a toggle moves the row in the (enabled,
+next trigger) order and only the reload puts it in its new place.
+*/
+public class AlarmAdapter extends PagingDataAdapter<AlarmRow, AlarmAdapter.AlarmViewHolder> {
 
     private final OnToggleListener onToggleListener;
     private final OnDeleteListener onDeleteListener;
+    private final LongSparseArray<AlarmRow> overlay = new LongSparseArray<>();
+    private final LongSparseArray<Boolean> removed = new LongSparseArray<>();
+    private final LongSparseArray<Integer> positions = new LongSparseArray<>(); // id -> where it was last bound
 
     public interface OnToggleListener {
-        void onToggle(Alarm alarm, boolean enabled);
+        void onToggle(AlarmRow alarm, boolean enabled);
     }
 
     public interface OnDeleteListener {
-        void onDelete(Alarm alarm);
+        void onDelete(AlarmRow alarm);
     }
 
     public AlarmAdapter(OnToggleListener onToggle, OnDeleteListener onDelete) {
-        super(new DiffUtil.ItemCallback<Alarm>() {
+        super(new DiffUtil.ItemCallback<AlarmRow>() {
             @Override
-            public boolean areItemsTheSame(@NonNull Alarm oldItem, @NonNull Alarm newItem) {
-                return oldItem.getId() == newItem.getId();
+            public boolean areItemsTheSame(@NonNull AlarmRow oldItem, @NonNull AlarmRow newItem) {
+                return oldItem.id == newItem.id;
             }
 
             @Override
-            public boolean areContentsTheSame(@NonNull Alarm oldItem, @NonNull Alarm newItem) {
+            public boolean areContentsTheSame(@NonNull AlarmRow oldItem, @NonNull AlarmRow newItem) {
                 return oldItem.sameas(newItem);
             }
         });
         this.onToggleListener = onToggle;
         this.onDeleteListener = onDelete;
+        addOnPagesUpdatedListener(() -> {
+            overlay.clear();
+            removed.clear();
+            return Unit.INSTANCE;
+        });
+    }
+
+// on the main thread; each change costs a lookup and at most one rebind here, the reload comes after
+    public void applyChanges(List<AlarmChange> changes) {
+        for (AlarmChange c : changes) {
+            if (AlarmChange.INSERTED == c.kind)
+                continue; // placed by the reload
+            if (AlarmChange.ALL_IDS != c.id) {
+                apply(c.id, c);
+                continue;
+            }
+            for (int i = 0; i < positions.size(); i++)
+                apply(positions.keyAt(i), c);
+        }
+    }
+
+    private void apply(long id, AlarmChange c) {
+        Integer pos = positions.get(id);
+        if (null == pos || pos >= getItemCount())
+            return;
+        AlarmRow shown = shownAt(pos);
+        if (null == shown || shown.id != id)
+            return; // the list moved since it was bound, the reload will show it
+        switch (c.kind) {
+            case AlarmChange.UPDATED -> overlay.put(id, c.row);
+            case AlarmChange.ENABLED -> overlay.put(id, shown.withEnabled(c.enabled));
+            case AlarmChange.REMOVED -> removed.put(id, true);
+            default -> {
+                return;
+            }
+        }
+        notifyItemChanged(pos);
+    }
+
+// the loaded row with the overlay on top, null for placeholders and removed rows; loads nothing
+    private AlarmRow shownAt(int position) {
+        AlarmRow loaded = peek(position);
+        if (null == loaded || null != removed.get(loaded.id))
+            return null;
+        AlarmRow over = overlay.get(loaded.id);
+        if (null == over)
+            return loaded;
+        if (over.sameas(loaded)) {
+            overlay.remove(loaded.id); // the database has caught up
+            return loaded;
+        }
+        return over;
     }
 
     @NonNull
@@ -53,11 +128,25 @@ public class AlarmAdapter extends ListAdapter<Alarm, AlarmAdapter.AlarmViewHolde
 
     @Override
     public void onBindViewHolder(@NonNull AlarmViewHolder holder, int position) {
-        Alarm alarm = getItem(position);
-        holder.bind(alarm, onToggleListener, onDeleteListener);
+        AlarmRow alarm = getItem(position); // asks for the page if it is not loaded
+        holder.boundId = null == alarm ? AlarmChange.ALL_IDS : alarm.id;
+        if (null != alarm) {
+            positions.put(alarm.id, position);
+            alarm = shownAt(position);
+        }
+        if (null == alarm)
+            holder.clear();
+        else
+            holder.bind(alarm, onToggleListener, onDeleteListener);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull AlarmViewHolder holder) {
+        positions.remove(holder.boundId);
     }
 
     static class AlarmViewHolder extends RecyclerView.ViewHolder {
+        private long boundId = AlarmChange.ALL_IDS;
         private final TextView labelView;
         private final Switch toggleSwitch;
         private final ImageButton deleteButton;
@@ -69,9 +158,29 @@ public class AlarmAdapter extends ListAdapter<Alarm, AlarmAdapter.AlarmViewHolde
             deleteButton = itemView.findViewById(R.id.delete_button);
         }
 
-        public void bind(Alarm alrm, OnToggleListener toggleListener, OnDeleteListener deleteListener) {
-            labelView.setText(alrm.getTypeDescr()+" - "+alrm.hours+"h:"+ alrm.minutes+"m, "+alrm.durationSeconds+"s.");
+        void clear() {
+            labelView.setText("");
+            toggleSwitch.setOnCheckedChangeListener(null);
+            toggleSwitch.setChecked(false);
+            toggleSwitch.setEnabled(false);
+            deleteButton.setOnClickListener(null);
+            deleteButton.setEnabled(false);
+        }
+
+        public void bind(AlarmRow alrm, OnToggleListener toggleListener, OnDeleteListener deleteListener) {
+            StringBuilder label = new StringBuilder()
+                .append(alrm.getTypeDescr()).append(" - ").append(alrm.hours).append("h:").append(alrm.minutes).append("m, ")
+                .append(alrm.durationSeconds).append("s.");
+            if (alrm.enabled && alrm.nextTriggerMillis > System.currentTimeMillis()) {
+                label.append("\nnext ");
+                TriggerCalculator.system().appendLocal(alrm.nextTriggerMillis, label);
+            }
+            labelView.setText(label);
+// the holder is recycled: the listener of the previous row must not hear this setChecked
+            toggleSwitch.setOnCheckedChangeListener(null);
             toggleSwitch.setChecked(alrm.enabled);
+            toggleSwitch.setEnabled(true);
+            deleteButton.setEnabled(true);
 
             toggleSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
                 toggleListener.onToggle(alrm, isChecked);
@@ -0,0 +1,72 @@
+package com.davidauz.zzpal.ui;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.davidauz.zzpal.R;
+import com.davidauz.zzpal.service.LogRecord;
+import com.davidauz.zzpal.service.TimestampCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// one row per log record; records are only rendered when their row is bound
+public class LogListAdapter extends RecyclerView.Adapter<LogListAdapter.LogViewHolder> {
+    private final List<LogRecord> records = new ArrayList<>();
+    private final TimestampCache timestamps;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public LogListAdapter(TimestampCache ts) {
+        timestamps = ts;
+    }
+
+    public void append(List<LogRecord> newer) {
+        int start = records.size();
+        records.addAll(newer);
+        notifyItemRangeInserted(start, newer.size());
+    }
+
+    public void prepend(List<LogRecord> older) {
+        records.addAll(0, older);
+        notifyItemRangeInserted(0, older.size());
+    }
+
+    public void clear() {
+        int n = records.size();
+        records.clear();
+        notifyItemRangeRemoved(0, n);
+    }
+
+    @Override
+    public int getItemCount() {
+        return records.size();
+    }
+
+    @NonNull
+    @Override
+    public LogViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.item_log, parent, false);
+        return new LogViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LogViewHolder holder, int position) {
+        line.setLength(0);
+        records.get(position).render(line, timestamps);
+        holder.lineView.setText(line.toString());
+    }
+
+    static class LogViewHolder extends RecyclerView.ViewHolder {
+        private final TextView lineView;
+
+        public LogViewHolder(@NonNull View itemView) {
+            super(itemView);
+            lineView = itemView.findViewById(R.id.log_line);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.davidauz.zzpal.ui;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.davidauz.zzpal.service.AppLogger;
+import com.davidauz.zzpal.service.LogHistory;
+import com.davidauz.zzpal.service.LogRecord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Drives the log list in the logs layout.
+New records are collected as they are logged and handed to the adapter at most
+once per frame; older records are paged in from the log files when the user
+scrolls near the top.
+showMatches replaces the list with the result of an indexed search until attach() is called again.
+release() when the list goes away for good.
+*/
+public class LogListController implements AppLogger.LogObserver {
+    private static final int PAGE_SIZE = 200
+    ,   PREFETCH_ROWS = 20
+    ,   MAX_MATCHES = 1000
+    ;
+    private final RecyclerView list;
+    private final LinearLayoutManager layoutManager;
+    private final LogListAdapter adapter;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "zzpal-log-history");
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<LogRecord> pending = new ArrayList<>();
+    private boolean frameScheduled;
+    private boolean attached
+    ,   loadingOlder
+    ;
+    private int liveShown;   // records in the list that came from memory rather than from the files
+    private LogHistory history;
+    private int generation;  // bumped on detach/clear so that late pages are dropped
+
+    public LogListController(RecyclerView recyclerView) {
+        list = recyclerView;
+        layoutManager = new LinearLayoutManager(recyclerView.getContext());
+        layoutManager.setStackFromEnd(true);
+        adapter = new LogListAdapter(AppLogger.getInstance().getDisplayTimestamps());
+        list.setLayoutManager(layoutManager);
+        list.setAdapter(adapter);
+        list.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() < PREFETCH_ROWS)
+                    loadOlder();
+            }
+        });
+    }
+
+    public void attach() {
+        if (attached)
+            return;
+        attached = true;
+        generation++;
+        adapter.clear();
+        history = null;
+        List<LogRecord> tail = AppLogger.getInstance().setLogObserver(this);
+        liveShown = tail.size();
+        adapter.append(tail);
+        list.scrollToPosition(Math.max(0, adapter.getItemCount() - 1));
+// first page of history right away: a short list cannot be scrolled up to ask for it
+        loadOlder();
+    }
+
+    public void detach() {
+        if (!attached)
+            return;
+        attached = false;
+        generation++;
+        AppLogger.getInstance().setLogObserver(null);
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
+
+// detaches and stops the history thread; the controller is not used after this
+    public void release() {
+        detach();
+        historyExecutor.shutdownNow();
+    }
+
+// alarmId may be LogRecord.NO_ALARM, code LogIndex.ANY_CODE
+    public void showMatches(long alarmId, int code) {
+        detach();
+        int gen = generation;
+        historyExecutor.execute(() -> {
+            List<LogRecord> matches = AppLogger.getInstance().search(alarmId, code, 0, Long.MAX_VALUE, MAX_MATCHES);
+            mainHandler.post(() -> {
+                if (gen != generation)
+                    return;
+                adapter.clear();
+                adapter.append(matches);
+                list.scrollToPosition(Math.max(0, adapter.getItemCount() - 1));
+            });
+        });
+    }
+
+    @Override
+    public void onAppended(LogRecord r) {
+        synchronized (pending) {
+            pending.add(r);
+            if (frameScheduled)
+                return;
+            frameScheduled = true;
+        }
+        list.postOnAnimation(this::applyPending);
+    }
+
+    @Override
+    public void onCleared() {
+        mainHandler.post(() -> {
+            synchronized (pending) {
+                pending.clear();
+            }
+            generation++;
+            history = null;
+            liveShown = 0;
+            adapter.clear();
+        });
+    }
+
+    private void applyPending() {
+        List<LogRecord> batch;
+        synchronized (pending) {
+            frameScheduled = false;
+            if (pending.isEmpty())
+                return;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        boolean atBottom = !list.canScrollVertically(1);
+        liveShown += batch.size();
+        adapter.append(batch);
+        if (atBottom)
+            list.scrollToPosition(adapter.getItemCount() - 1);
+    }
+
+    private void loadOlder() {
+        if (!attached || loadingOlder || (null != history && history.isExhausted()))
+            return;
+        loadingOlder = true;
+        int gen = generation
+        ,   skip = liveShown
+        ;
+        LogHistory h = history;
+        historyExecutor.execute(() -> {
+            List<LogRecord> page = new ArrayList<>();
+            LogHistory source = null == h ? AppLogger.getInstance().openHistory(skip) : h;
+            try {
+                if (null != source)
+                    page = source.loadOlder(PAGE_SIZE);
+            } catch (IOException e) {
+                page.add(LogRecord.raw("Error reading logs: " + e.getMessage()));
+            }
+            List<LogRecord> older = page;
+            mainHandler.post(() -> {
+                loadingOlder = false;
+                if (gen != generation)
+                    return;
+                history = source;
+                if (older.isEmpty())
+                    return;
+                int first = layoutManager.findFirstVisibleItemPosition();
+                RecyclerView.ViewHolder top = list.findViewHolderForAdapterPosition(first);
+                int offset = null == top ? 0 : top.itemView.getTop();
+                adapter.prepend(older);
+                layoutManager.scrollToPositionWithOffset(first + older.size(), offset);
+            });
+        });
+    }
+}
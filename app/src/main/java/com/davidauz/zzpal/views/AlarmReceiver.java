@@ -6,8 +6,14 @@ import android.content.Intent;
 import android.os.Build;
 import android.os.PowerManager;
 import androidx.core.content.ContextCompat;
+import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmScheduler;
+import com.davidauz.zzpal.entity.AlarmSnapshot;
+import com.davidauz.zzpal.service.AlarmAudioEngine;
 import com.davidauz.zzpal.service.AlarmService;
 import com.davidauz.zzpal.service.AppLogger;
+import com.davidauz.zzpal.service.FireStats;
+import com.davidauz.zzpal.service.LogRecord;
 
 public class AlarmReceiver extends BroadcastReceiver {
     public static PowerManager.WakeLock wakeLock;
@@ -15,11 +21,37 @@ public class AlarmReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        try {
+        long receivedMillis = System.currentTimeMillis();
         acquireWakeLock(context);
-        AppLogger.getInstance().log("Alarm received!");
+        if (AlarmScheduler.ACTION_QUEUE.equals(intent.getAction())) {
+// queue head: the due alarms are read from the database in the background
+            PendingResult pending = goAsync();
+            new AlarmScheduler(context).fireDue(receivedMillis, pending::finish);
+            return;
+        }
+        fire(context, intent, receivedMillis);
+    }
+
+// intent carries the extras set by AlarmScheduler.putFireExtras
+    public static void fire(Context context, Intent intent, long receivedMillis) {
+        long alarmId = intent.getLongExtra("ALARM_ID", LogRecord.NO_ALARM);
+// disabled or deleted since it was armed; the snapshot is a mapped file, the database stays closed
+        AlarmSnapshot snapshot = AlarmSnapshot.get(context);
+        Alarm alarm = snapshot.find(alarmId);
+        if (snapshot.isLoaded() && null == alarm) {
+            AppLogger.getInstance().event(LogRecord.EV_ALARM_RECEIVED, alarmId, "Alarm no longer enabled, not firing");
+            releaseWakeLock();
+            return;
+        }
+// the sound gets prepared while the service starts up
+        AlarmAudioEngine.get(context).prewarm(null != alarm ? alarm.audioUri : intent.getStringExtra("AUDIO_URI"), 0);
+        try {
+        FireStats.get(context).record(intent.getIntExtra("TYPE", 0), FireStats.METRIC_RECEIVE
+        ,   intent.getLongExtra("TARGET_MILLIS", 0), receivedMillis);
+        AppLogger.getInstance().event(LogRecord.EV_ALARM_RECEIVED, intent.getLongExtra("ALARM_ID", LogRecord.NO_ALARM), "Alarm received!");
         Intent service = new Intent(context, AlarmService.class);
         service.putExtras(intent);
+        service.putExtra("RECEIVED_MILLIS", receivedMillis);
 
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -28,7 +60,7 @@ public class AlarmReceiver extends BroadcastReceiver {
                 context.startService(service);
             }
         } catch (Exception e) {
-            AppLogger.getInstance().log("Error starting service: " + e.getMessage());
+            AppLogger.getInstance().event(LogRecord.EV_ERROR, intent.getLongExtra("ALARM_ID", LogRecord.NO_ALARM), "Error starting service: " + e.getMessage());
             releaseWakeLock();
         }
     }
@@ -1,44 +1,64 @@
 package com.davidauz.zzpal.views;
 
 import android.app.Application;
+import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.ViewModelKt;
+import androidx.paging.Pager;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingData;
+import androidx.paging.PagingLiveData;
 
 import com.davidauz.zzpal.database.AlarmDatabase;
 import com.davidauz.zzpal.database.AlarmRepository;
+import com.davidauz.zzpal.database.DbDispatcher;
 import com.davidauz.zzpal.entity.Alarm;
+import com.davidauz.zzpal.entity.AlarmFireDay;
+import com.davidauz.zzpal.entity.AlarmRow;
+import com.davidauz.zzpal.entity.AlarmScheduler;
 import com.davidauz.zzpal.service.AppLogger;
+import com.davidauz.zzpal.service.FireHistory;
 
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 
 public class AlarmViewModel extends AndroidViewModel {
+    private static final int PAGE_SIZE = 30; // a couple of screens of rows
     private AlarmRepository repository;
-    private LiveData<List<Alarm>> allAlarms;
-    private Executor executor = Executors.newSingleThreadExecutor();
+    private LiveData<PagingData<AlarmRow>> alarmPages;
+    private Executor executor = DbDispatcher.lane(DbDispatcher.LANE_UI);
 
     public AlarmViewModel(@NonNull Application application) {
         super(application);
         AlarmDatabase db = AlarmDatabase.getDatabase(application);
         repository = new AlarmRepository(db, executor);
-        allAlarms = repository.getAllAlarms();
+// placeholders keep the scrollbar honest: the count is known, rows load as they come on screen
+        Pager<Integer, AlarmRow> pager = new Pager<>(
+            new PagingConfig(PAGE_SIZE, PAGE_SIZE, true, 2 * PAGE_SIZE)
+        ,   repository::pageAlarms
+        );
+        alarmPages = PagingLiveData.cachedIn(PagingLiveData.getLiveData(pager), ViewModelKt.getViewModelScope(this));
     }
 
-    public LiveData<List<Alarm>> getAllAlarms() {
-        return allAlarms;
+    public LiveData<PagingData<AlarmRow>> getAlarmPages() {
+        return alarmPages;
     }
 
-    public void toggleAlarm(long id) {
-        executor.execute(() -> {
-            Alarm alarm = repository.getAlarm(id);
-            if (alarm != null) {
-                alarm.enabled = !alarm.enabled;
-                repository.update(alarm);
-            }
-        });
+// committed writes by id, on the main thread; remove the listener with its view
+    public void addChangeListener(AlarmRepository.ChangeListener l) {
+        repository.addChangeListener(l);
+    }
+
+    public void removeChangeListener(AlarmRepository.ChangeListener l) {
+        repository.removeChangeListener(l);
     }
 
     public void addAlarm(Alarm ala) {
@@ -47,21 +67,91 @@ public class AlarmViewModel extends AndroidViewModel {
 
     public void deleteAlarm(long id) {
         AppLogger.getInstance().log("Deleting alarm #"+id);
+        repository.deleteById(id);
+    }
+
+    public void setEnabled(long id, boolean enabled) {
+        repository.setEnabled(id, enabled);
+    }
+
+    public void updateAlarm(Alarm alarm) {
+        repository.update(alarm);
+    }
+
+// every alarm in one UPDATE and one list refresh; then runs on the background executor once it is committed
+    public void setAllEnabled(boolean enabled, Runnable then) {
+        repository.setAllEnabled(enabled, then);
+    }
+
+// action gets every alarm as stored, on the background executor
+    public void withAllAlarms(Consumer<List<Alarm>> action) {
         executor.execute(() -> {
-            Alarm alarm = repository.getAlarm(id);
-            if (alarm != null) {
-                repository.delete(alarm);
-            }
+            repository.flushWrites(); // the switches flipped a moment ago included
+            action.accept(repository.getAllAlarmsNow());
         });
     }
 
-    public void updateAlarm(Alarm alarm) {
+// the daily rollups of the last days, newest first; today's fires are summed up first
+    public void withFireHistory(int days, int limit, Consumer<List<AlarmFireDay>> action) {
+        executor.execute(() -> {
+            FireHistory.rollup(getApplication());
+            action.accept(repository.getFireDays(days, limit));
+        });
+    }
+
+    public void withUpcoming(int limit, Consumer<List<Alarm>> action) {
+        executor.execute(() -> action.accept(repository.getUpcoming(limit)));
+    }
+
+    @Override
+    protected void onCleared() {
+        executor.execute(repository::flushWrites);
+    }
+
+// done gets a line for the user, on the background executor
+    public void exportAlarms(Uri uri, Consumer<String> done) {
         executor.execute(() -> {
-            repository.update(alarm);
+            try (OutputStream out = getApplication().getContentResolver().openOutputStream(uri, "wt")) {
+                if (null == out)
+                    throw new FileNotFoundException(uri.toString());
+                int n = repository.exportTo(out);
+                AppLogger.getInstance().log("Exported " + n + " alarms");
+                done.accept("Exported " + n + " alarms");
+            } catch (Exception e) {
+                AppLogger.getInstance().log("Export failed: " + e.getMessage());
+                done.accept("Export failed: " + e.getMessage());
+            }
         });
     }
 
-    public Alarm getAlarmById(long id) {
-        return repository.getAlarm(id);
+// inserted in batches on the maintenance lane, then armed with one reconcile; done runs on that lane
+    public void importAlarms(Uri uri, Consumer<String> done) {
+        try {
+            DbDispatcher.lane(DbDispatcher.LANE_MAINTENANCE).execute(() -> {
+                String result;
+                try (InputStream in = getApplication().getContentResolver().openInputStream(uri)) {
+                    if (null == in)
+                        throw new FileNotFoundException(uri.toString());
+                    int n = repository.importFrom(in);
+                    result = "Imported " + n + " alarms";
+                } catch (Exception e) {
+                    result = "Import failed: " + e.getMessage();
+                }
+                AppLogger.getInstance().log(result);
+                new AlarmScheduler(getApplication()).scheduleAll();
+                done.accept(result);
+            });
+        } catch (RejectedExecutionException e) {
+            done.accept("Import failed: " + e.getMessage());
+        }
+    }
+
+    public String describeCache() {
+        return repository.describeCache() + "\n" + DbDispatcher.get().describe();
+    }
+
+// action gets the alarm, or null, on the UI lane; a memory read when it is cached
+    public void withAlarm(long id, Consumer<Alarm> action) {
+        repository.getAlarm(id, action);
     }
 }
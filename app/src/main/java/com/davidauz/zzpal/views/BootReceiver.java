@@ -0,0 +1,26 @@
+package com.davidauz.zzpal.views;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import com.davidauz.zzpal.entity.AlarmScheduler;
+import com.davidauz.zzpal.service.AppLogger;
+
+/*
+AlarmManager forgets everything on reboot and when the app is updated:
+the alarms that were armed are armed again from AlarmScheduler's registry.
+The work happens on the scheduler thread, the broadcast is kept alive with goAsync.
+*/
+public class BootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(action) && !Intent.ACTION_MY_PACKAGE_REPLACED.equals(action))
+            return;
+        AppLogger.getInstance().log("BootReceiver " + action);
+        PendingResult pending = goAsync();
+        new AlarmScheduler(context).restore(pending::finish);
+    }
+}
@@ -0,0 +1,87 @@
+package com.davidauz.zzpal.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import org.junit.Test;
+
+public class OccurrenceIteratorTest {
+    private static OccurrenceIterator iterator(String zone, String rule, int hours, int minutes) {
+        TriggerCalculator calc = new TriggerCalculator(Clock.system(ZoneId.of(zone)));
+        return new OccurrenceIterator(RecurrenceRule.parse(rule, 0), hours, minutes, calc, rule);
+    }
+
+    private static long millis(String offsetDateTime) {
+        return OffsetDateTime.parse(offsetDateTime).toInstant().toEpochMilli();
+    }
+
+    @Test
+    public void dailyAcrossTheSpringGap() {
+        OccurrenceIterator it = iterator("Europe/Rome", "FREQ=DAILY;DTSTART=20110325", 2, 30);
+        long t = it.next(millis("2011-03-25T00:00+01:00"));
+        assertEquals(millis("2011-03-25T02:30+01:00"), t);
+        assertEquals(millis("2011-03-26T02:30+01:00"), t = it.next(t));
+        assertEquals(millis("2011-03-27T03:30+02:00"), t = it.next(t)); // 02:30 does not exist that day
+        assertEquals(millis("2011-03-28T02:30+02:00"), it.next(t));
+    }
+
+    @Test
+    public void dailyInTheAutumnOverlapRingsOnce() {
+        OccurrenceIterator it = iterator("Europe/Rome", "FREQ=DAILY;DTSTART=20111029", 2, 15);
+        long t = it.next(millis("2011-10-29T12:00+02:00"));
+        assertEquals(millis("2011-10-30T02:15+02:00"), t);
+        assertEquals(millis("2011-10-31T02:15+01:00"), it.next(t));
+    }
+
+    @Test
+    public void weeklyDays() {
+        OccurrenceIterator it = iterator("America/New_York", "FREQ=WEEKLY;BYDAY=MO,WE,FR;DTSTART=20240101", 7, 0);
+        long t = millis("2024-01-01T08:00-05:00"); // Monday, after the alarm
+        String[] expected = {"2024-01-03T07:00-05:00", "2024-01-05T07:00-05:00", "2024-01-08T07:00-05:00", "2024-01-10T07:00-05:00"};
+        for (String e : expected)
+            assertEquals(millis(e), t = it.next(t));
+    }
+
+    @Test
+    public void noneAfterUntil() {
+        OccurrenceIterator it = iterator("Europe/Rome", "FREQ=DAILY;DTSTART=20240101;UNTIL=20240102", 9, 0);
+        long t = it.next(millis("2023-12-31T12:00+01:00"));
+        assertEquals(millis("2024-01-01T09:00+01:00"), t);
+        assertEquals(millis("2024-01-02T09:00+01:00"), t = it.next(t));
+        assertEquals(OccurrenceIterator.NONE, it.next(t));
+    }
+
+// Apia went from the 29th straight to the 31st: the 30th is the 31st, which rings only once
+    @Test
+    public void apiaSkippedDayRingsOnce() {
+        OccurrenceIterator it = iterator("Pacific/Apia", "FREQ=DAILY;DTSTART=20111228", 8, 0);
+        long t = it.next(millis("2011-12-28T00:00-10:00"));
+        assertEquals(millis("2011-12-28T08:00-10:00"), t);
+        assertEquals(millis("2011-12-29T08:00-10:00"), t = it.next(t));
+        assertEquals(millis("2011-12-31T08:00+14:00"), t = it.next(t));
+        assertEquals(millis("2012-01-01T08:00+14:00"), it.next(t));
+    }
+
+// a long run against ZonedDateTime, asking as the alarm would: each time right after the last one
+    @Test
+    public void matchesZonedDateTimeOverYears() {
+        ZoneId zone = ZoneId.of("Australia/Lord_Howe");
+        OccurrenceIterator it = iterator(zone.getId(), "FREQ=DAILY;DTSTART=20100101", 2, 15);
+        LocalDate day = LocalDate.of(2010, 1, 1);
+        long t = it.next(millis("2009-12-31T12:00+11:00"));
+        for (int i = 0; i < 3 * 366; i++, day = day.plusDays(1)) {
+            long expected = ZonedDateTime.of(LocalDateTime.of(day, java.time.LocalTime.of(2, 15)), zone).toInstant().toEpochMilli();
+            assertEquals(day.toString(), expected, t);
+            long next = it.next(t);
+            assertTrue(next > t);
+            t = next;
+        }
+    }
+}
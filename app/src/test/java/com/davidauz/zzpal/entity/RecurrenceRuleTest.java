@@ -0,0 +1,94 @@
+package com.davidauz.zzpal.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+
+import org.junit.Test;
+
+public class RecurrenceRuleTest {
+    private static long day(int year, int month, int dayOfMonth) {
+        return LocalDate.of(year, month, dayOfMonth).toEpochDay();
+    }
+
+    @Test
+    public void civilDaysMatchLocalDate() {
+        for (long d = day(1999, 12, 25); d < day(2032, 3, 5); d += 13) {
+            LocalDate date = LocalDate.ofEpochDay(d);
+            String text = String.format("%04d%02d%02d", date.getYear(), date.getMonthValue(), date.getDayOfMonth());
+            assertEquals(text, d, RecurrenceRule.parseDay(text));
+            assertEquals(text, date.getDayOfWeek().getValue() - 1, RecurrenceRule.dayOfWeek(d));
+        }
+    }
+
+    @Test
+    public void dailyStartsOnTheDayItIsParsedByDefault() {
+        RecurrenceRule rule = RecurrenceRule.parse("FREQ=DAILY", day(2024, 2, 28));
+        assertFalse(rule.matches(day(2024, 2, 27)));
+        assertTrue(rule.matches(day(2024, 2, 28)));
+        assertTrue(rule.matches(day(2024, 2, 29)));
+        assertEquals("FREQ=DAILY;DTSTART=20240228", rule.toString());
+    }
+
+    @Test
+    public void dailyInterval() {
+        RecurrenceRule rule = RecurrenceRule.parse("freq=daily;interval=3;dtstart=20240101", 0);
+        assertTrue(rule.matches(day(2024, 1, 1)));
+        assertFalse(rule.matches(day(2024, 1, 2)));
+        assertFalse(rule.matches(day(2024, 1, 3)));
+        assertTrue(rule.matches(day(2024, 1, 4)));
+    }
+
+// 2024-01-01 is a Monday
+    @Test
+    public void weeklyDefaultsToTheWeekdayOfDtstart() {
+        RecurrenceRule rule = RecurrenceRule.parse("FREQ=WEEKLY;DTSTART=20240103", 0);
+        assertEquals("FREQ=WEEKLY;BYDAY=WE;DTSTART=20240103", rule.toString());
+        assertTrue(rule.matches(day(2024, 1, 10)));
+        assertFalse(rule.matches(day(2024, 1, 11)));
+    }
+
+    @Test
+    public void everyOtherWeekCountsWeeksFromDtstart() {
+        RecurrenceRule rule = RecurrenceRule.parse("FREQ=WEEKLY;INTERVAL=2;BYDAY=SU,MO;DTSTART=20240103", 0);
+        assertTrue(rule.matches(day(2024, 1, 7)));   // Sunday, week of DTSTART
+        assertFalse(rule.matches(day(2024, 1, 8)));  // Monday, next week
+        assertTrue(rule.matches(day(2024, 1, 15)));
+        assertTrue(rule.matches(day(2024, 1, 21)));
+        assertFalse(rule.matches(day(2024, 1, 28)));
+    }
+
+    @Test
+    public void untilAndExdate() {
+        RecurrenceRule rule = RecurrenceRule.parse("FREQ=DAILY;DTSTART=20240101;UNTIL=20240105;EXDATE=20240104,20240102", 0);
+        assertTrue(rule.matches(day(2024, 1, 1)));
+        assertFalse(rule.matches(day(2024, 1, 2)));
+        assertTrue(rule.matches(day(2024, 1, 3)));
+        assertFalse(rule.matches(day(2024, 1, 4)));
+        assertTrue(rule.matches(day(2024, 1, 5)));
+        assertFalse(rule.matches(day(2024, 1, 6)));
+        assertFalse(rule.isOver(day(2024, 1, 5)));
+        assertTrue(rule.isOver(day(2024, 1, 6)));
+        assertEquals("FREQ=DAILY;DTSTART=20240101;UNTIL=20240105;EXDATE=20240102,20240104", rule.toString());
+    }
+
+    @Test
+    public void canonicalFormParsesBackToTheSameRule() {
+        String canonical = RecurrenceRule.parse("BYDAY=FR,MO;FREQ=WEEKLY;INTERVAL=2;UNTIL=20241231", day(2024, 5, 6)).toString();
+        assertEquals(canonical, RecurrenceRule.parse(canonical, 0).toString());
+    }
+
+    @Test
+    public void rejectsWhatItDoesNotUnderstand() {
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=MONTHLY", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("INTERVAL=2", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=DAILY;BYDAY=MO", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=DAILY;INTERVAL=0", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=WEEKLY;BYDAY=XX", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=DAILY;UNTIL=2024-01-01", 0));
+        assertThrows(IllegalArgumentException.class, () -> RecurrenceRule.parse("FREQ=DAILY;COUNT", 0));
+    }
+}
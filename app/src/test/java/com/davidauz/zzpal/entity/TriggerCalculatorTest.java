@@ -0,0 +1,162 @@
+package com.davidauz.zzpal.entity;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/*
+FIXED alarms around DST transitions, against the wall times they must ring
+at; the sweep at the end holds next() to ZonedDateTime around every
+transition of a few awkward zones.
+*/
+public class TriggerCalculatorTest {
+    private static final String[] ZONES = {
+        "Europe/Rome", "America/New_York", "Australia/Lord_Howe", "Pacific/Apia", "America/Sao_Paulo", "Asia/Kolkata"
+    };
+
+    private static long fixed(String zone, String now, int hours, int minutes) {
+        TriggerCalculator calc = new TriggerCalculator(Clock.system(ZoneId.of(zone)));
+        return calc.next(Alarm.TYPE_FIXED, hours, minutes, millis(now));
+    }
+
+    private static long millis(String offsetDateTime) {
+        return OffsetDateTime.parse(offsetDateTime).toInstant().toEpochMilli();
+    }
+
+// 2011-03-27 Rome: 02:00+01 jumps to 03:00+02
+    @Test
+    public void gapTimeMovesForwardOnTheSameDay() {
+        assertEquals(millis("2011-03-27T03:30+02:00"), fixed("Europe/Rome", "2011-03-27T01:00+01:00", 2, 30));
+    }
+
+    @Test
+    public void gapTimeStillAheadAfterTheJump() {
+        assertEquals(millis("2011-03-27T03:30+02:00"), fixed("Europe/Rome", "2011-03-27T03:04+02:00", 2, 30));
+    }
+
+    @Test
+    public void gapTimeAlreadyPastGoesToTomorrow() {
+        assertEquals(millis("2011-03-28T02:30+02:00"), fixed("Europe/Rome", "2011-03-27T03:45+02:00", 2, 30));
+    }
+
+// 2011-10-30 Rome: 03:00+02 goes back to 02:00+01, 02:xx happens twice
+    @Test
+    public void overlapTakesTheFirstPass() {
+        assertEquals(millis("2011-10-30T02:00+02:00"), fixed("Europe/Rome", "2011-10-30T01:50+02:00", 2, 0));
+    }
+
+    @Test
+    public void overlapTakesTheSecondPassWhenTheFirstIsOver() {
+        assertEquals(millis("2011-10-30T02:00+01:00"), fixed("Europe/Rome", "2011-10-30T02:04+02:00", 2, 0));
+    }
+
+    @Test
+    public void overlapBothPassesOverGoesToTomorrow() {
+        assertEquals(millis("2011-10-31T02:00+01:00"), fixed("Europe/Rome", "2011-10-30T02:30+01:00", 2, 0));
+    }
+
+    @Test
+    public void newYorkGap() {
+        assertEquals(millis("2011-03-13T03:30-04:00"), fixed("America/New_York", "2011-03-13T03:10-04:00", 2, 30));
+    }
+
+// Lord Howe moves by half an hour: 02:00+10:30 -> 02:30+11:00, and 02:00+11:00 -> 01:30+10:30
+    @Test
+    public void lordHoweHalfHourGap() {
+        assertEquals(millis("2011-10-02T02:45+11:00"), fixed("Australia/Lord_Howe", "2011-10-02T01:00+10:30", 2, 15));
+    }
+
+    @Test
+    public void lordHoweHalfHourOverlap() {
+        assertEquals(millis("2011-04-03T01:45+10:30"), fixed("Australia/Lord_Howe", "2011-04-03T01:50+11:00", 1, 45));
+    }
+
+// Apia skipped 2011-12-30 altogether: 23:59:59-10:00 on the 29th was followed by 00:00+14:00 on the 31st
+    @Test
+    public void apiaSkippedDay() {
+        assertEquals(millis("2011-12-31T08:00+14:00"), fixed("Pacific/Apia", "2011-12-29T10:00-10:00", 8, 0));
+    }
+
+    @Test
+    public void apiaLastMinutesBeforeTheSkip() {
+        assertEquals(millis("2011-12-29T23:45-10:00"), fixed("Pacific/Apia", "2011-12-29T23:30-10:00", 23, 45));
+    }
+
+    @Test
+    public void exactlyNowIsNotPast() {
+        assertEquals(millis("2011-06-01T07:00+02:00"), fixed("Europe/Rome", "2011-06-01T07:00+02:00", 7, 0));
+    }
+
+    @Test
+    public void elapsedIsRealTime() {
+        TriggerCalculator calc = new TriggerCalculator(Clock.system(ZoneId.of("Europe/Rome")));
+        long now = millis("2011-03-27T01:30+01:00");
+        assertEquals(now + 90 * 60 * 1000L, calc.next(Alarm.TYPE_ELAPSED, 1, 30, now));
+    }
+
+    @Test
+    public void localDayAndAtLocal() {
+        TriggerCalculator calc = new TriggerCalculator(Clock.system(ZoneId.of("Pacific/Apia")));
+        long now = millis("2011-12-29T23:30-10:00");
+        assertEquals(15337, calc.localDay(now)); // 2011-12-29
+        assertEquals(millis("2011-12-31T08:00+14:00"), calc.atLocal(15338, 8, 0, now));
+    }
+
+// what ZonedDateTime says: today's time in its earliest valid instant not before now, else tomorrow's
+    private static long reference(ZoneId zone, long now, int hours, int minutes) {
+        LocalDateTime local = Instant.ofEpochMilli(now).atZone(zone).toLocalDate().atTime(hours, minutes);
+        List<ZoneOffset> offsets = zone.getRules().getValidOffsets(local);
+        if (offsets.isEmpty()) {
+            long shifted = ZonedDateTime.of(local, zone).toInstant().toEpochMilli();
+            if (shifted >= now)
+                return shifted;
+        }
+        long best = Long.MAX_VALUE;
+        for (ZoneOffset offset : offsets) {
+            long t = local.toInstant(offset).toEpochMilli();
+            if (t >= now)
+                best = Math.min(best, t);
+        }
+        if (Long.MAX_VALUE != best)
+            return best;
+        return ZonedDateTime.of(local.plusDays(1), zone).toInstant().toEpochMilli();
+    }
+
+    @Test
+    public void matchesZonedDateTimeAroundTransitions() {
+        Instant end = Instant.parse("2013-01-01T00:00:00Z");
+        for (String name : ZONES) {
+            ZoneId zone = ZoneId.of(name);
+            ZoneRules rules = zone.getRules();
+            TriggerCalculator calc = new TriggerCalculator(Clock.system(zone));
+            List<Long> nows = new ArrayList<>();
+            Instant from = Instant.parse("2010-01-01T00:00:00Z");
+            ZoneOffsetTransition t;
+            while (null != (t = rules.nextTransition(from)) && t.getInstant().isBefore(end)) {
+                long at = t.getInstant().toEpochMilli();
+                for (long d = -26 * 3600_000L; d <= 26 * 3600_000L; d += 17 * 60_000L)
+                    nows.add(at + d);
+                from = t.getInstant();
+            }
+            nows.add(from.toEpochMilli() + 12 * 3600_000L); // zones without transitions
+            for (long now : nows) {
+                for (int m = 0; m < 24 * 60; m += 15) {
+                    String what = name + " at " + Instant.ofEpochMilli(now).atZone(zone) + " for " + m / 60 + ":" + m % 60;
+                    assertEquals(what, reference(zone, now, m / 60, m % 60), calc.next(Alarm.TYPE_FIXED, m / 60, m % 60, now));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.davidauz.zzpal.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/*
+The prepared-player states of AlarmAudioEngine, with fake players standing
+in for MediaPlayer: prepareAsync is a call to onPrepared the test makes
+when it likes.
+*/
+public class PlayerSlotsTest {
+    private static class Fake {
+        final String uri;
+        int starts
+        ,   stops
+        ;
+        boolean released;
+
+        Fake(String uri) {
+            this.uri = uri;
+        }
+    }
+
+    private final List<Fake> opened = new ArrayList<>();
+    private final PlayerSlots<Fake> slots = new PlayerSlots<>(new PlayerSlots.Players<Fake>() {
+        @Override
+        public Fake open(String uri) {
+            if (uri.startsWith("bad:"))
+                return null;
+            Fake f = new Fake(uri);
+            opened.add(f);
+            return f;
+        }
+
+        @Override
+        public void start(Fake player, AlarmAudioEngine.Listener listener) {
+            assertFalse("started after release", player.released);
+            player.starts++;
+        }
+
+        @Override
+        public void stop(Fake player) {
+            player.stops++;
+        }
+
+        @Override
+        public void release(Fake player) {
+            assertFalse("released twice", player.released);
+            player.released = true;
+        }
+    });
+
+    private static final AlarmAudioEngine.Listener LISTENER = new AlarmAudioEngine.Listener() {
+        @Override
+        public void onStarted(long wallMillis) {
+        }
+
+        @Override
+        public void onFirstSample(long wallMillis) {
+        }
+
+        @Override
+        public void onFailed(String why) {
+        }
+    };
+
+    @Test
+    public void startsOncePrepared() {
+        assertTrue(slots.start("a", LISTENER));
+        Fake a = opened.get(0);
+        assertEquals(0, a.starts);
+        slots.onPrepared(a);
+        assertEquals(1, a.starts);
+        assertSame(a, slots.playing());
+    }
+
+    @Test
+    public void stopWhilePreparingNeverStarts() {
+        slots.start("a", LISTENER);
+        Fake a = opened.get(0);
+        slots.stop();
+        assertTrue(a.released);
+        assertNull(slots.playing());
+        slots.onPrepared(a); // late, from before the release
+        assertEquals(0, a.starts);
+    }
+
+    @Test
+    public void secondStartWhilePreparingReleasesTheFirst() {
+        slots.start("a", LISTENER);
+        slots.start("b", LISTENER);
+        Fake a = opened.get(0)
+        ,   b = opened.get(1)
+        ;
+        assertTrue(a.released);
+        slots.onPrepared(a);
+        assertEquals(0, a.starts);
+        slots.onPrepared(b);
+        assertEquals(1, b.starts);
+        assertSame(b, slots.playing());
+    }
+
+    @Test
+    public void preparedTwiceStartsOnce() {
+        slots.start("a", LISTENER);
+        Fake a = opened.get(0);
+        slots.onPrepared(a);
+        slots.onPrepared(a);
+        assertEquals(1, a.starts);
+    }
+
+    @Test
+    public void secondStartOfTheSameSoundRestartsIt() {
+        slots.start("a", LISTENER);
+        Fake first = opened.get(0);
+        slots.onPrepared(first);
+        slots.start("a", LISTENER);
+        Fake second = opened.get(1);
+        assertEquals(1, first.stops);
+        assertTrue(first.released);
+        slots.onPrepared(second);
+        assertEquals(1, second.starts);
+    }
+
+    @Test
+    public void warmAndReadyStartsAtOnce() {
+        Fake w = slots.prewarm("a");
+        slots.onPrepared(w);
+        assertEquals(0, w.starts);
+        slots.start("a", LISTENER);
+        assertEquals(1, opened.size());
+        assertEquals(1, w.starts);
+        assertSame(w, slots.playing());
+        assertFalse(slots.isWarm("a"));
+    }
+
+    @Test
+    public void warmStillPreparingStartsWhenPrepared() {
+        Fake w = slots.prewarm("a");
+        slots.start("a", LISTENER);
+        assertEquals(0, w.starts);
+        slots.onPrepared(w);
+        assertEquals(1, w.starts);
+    }
+
+    @Test
+    public void stopWhileTheAdoptedWarmPlayerPrepares() {
+        Fake w = slots.prewarm("a");
+        slots.start("a", LISTENER);
+        slots.stop();
+        assertTrue(w.released);
+        slots.onPrepared(w);
+        assertEquals(0, w.starts);
+    }
+
+    @Test
+    public void warmForAnotherSoundIsKept() {
+        Fake w = slots.prewarm("b");
+        slots.start("a", LISTENER);
+        slots.stop();
+        assertFalse(w.released);
+        assertTrue(slots.isWarm("b"));
+        assertEquals("b", slots.uriOf(w));
+    }
+
+    @Test
+    public void droppedWarmIsReleasedOnce() {
+        Fake w = slots.prewarm("a");
+        slots.dropWarm(w);
+        assertTrue(w.released);
+        slots.dropWarm(w);
+        slots.start("a", LISTENER);
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void prewarmReplacesTheWarmPlayer() {
+        Fake a = slots.prewarm("a");
+        Fake b = slots.prewarm("b");
+        assertTrue(a.released);
+        slots.onPrepared(a);
+        assertFalse(slots.isWarm("a"));
+        slots.dropWarm(a); // the timer of the old one
+        assertFalse(b.released);
+    }
+
+    @Test
+    public void errorWhilePreparingReportsOnce() {
+        slots.start("a", LISTENER);
+        Fake a = opened.get(0);
+        assertSame(LISTENER, slots.onError(a));
+        assertTrue(a.released);
+        assertNull(slots.onError(a));
+    }
+
+    @Test
+    public void errorAfterStartIsNotReported() {
+        slots.start("a", LISTENER);
+        Fake a = opened.get(0);
+        slots.onPrepared(a);
+        assertNull(slots.onError(a));
+        assertTrue(a.released);
+    }
+
+    @Test
+    public void cannotOpen() {
+        assertFalse(slots.start("bad:a", LISTENER));
+        assertNull(slots.playing());
+        assertNull(slots.prewarm("bad:b"));
+        assertFalse(slots.isWarm("bad:b"));
+    }
+}